@@ -1,15 +1,13 @@
 package com.wakao.maindexkeep
 
-import com.droid.multidex.ClassReferenceListBuilder
-import com.google.common.base.Charsets
-import com.google.common.collect.Maps
+import com.wakao.maindexkeep.task.GenerateMainDexListBatchTask
 import com.google.common.io.Files
 import com.wakao.maindexkeep.task.GenerateMainDexListTask
 import org.gradle.api.*
 
-public class MainDexListPlugin implements Plugin<Project> {
-    File classesJar;
+import java.lang.reflect.Field
 
+public class MainDexListPlugin implements Plugin<Project> {
     File inputObfuscatedFilter;
 
     File outputMainDexList;
@@ -20,6 +18,12 @@ public class MainDexListPlugin implements Plugin<Project> {
 
     Task transformClassesWithMultidexlist;
 
+    /**
+     * Generates the lists of all the release variants at once when the mainDexBatch project
+     * property is set, null otherwise.
+     */
+    GenerateMainDexListBatchTask batchTask;
+
     void apply(final Project project) {
         inputFilter = new File("$project.rootDir\\main_dex_gen_filter.txt");
         println('===================================')
@@ -125,90 +129,66 @@ public class MainDexListPlugin implements Plugin<Project> {
                         println('transformClassesWithDexForVariant actions ' + it.metaClass)
                     }
 
-                    transformClassesWithDexForVariant.doFirst {
-                        println('2*********************************2')
-                        println('begin execute generate main dex list')
-                        println('***********************************')
-                        Set<File> files = new HashSet<>();
-                        getInputs().files.each {
-                            filterInputJar(files, it)
-                            println('input jar size ' + files.size())
-                            classesJar = files.iterator().next()
-                        }
-
-                        List<String> obfuscatedClasses = getObfuscatedClasses(mappingFile, inputFilter);
-                        inputObfuscatedFilter = new File("${project.buildDir}\\intermediates\\multi-dex\\"
-                                + variantName + "\\main_dex_gen_filter.txt");
-                        if(inputObfuscatedFilter.exists())
-                            inputObfuscatedFilter.delete()
-                        inputObfuscatedFilter.getParentFile().mkdirs()
-                        inputObfuscatedFilter.createNewFile()
-
-                        for (String line : obfuscatedClasses) {
-                            String replaceLine = line.replace(".", "/");
-                            println("---generate main dex output replaceLine " + replaceLine + "---");
-                            Files.append(replaceLine, inputObfuscatedFilter, Charsets.UTF_8);
-                            Files.append("\n", inputObfuscatedFilter, Charsets.UTF_8);
+                    inputObfuscatedFilter = new File("${project.buildDir}\\intermediates\\multi-dex\\"
+                            + variantName + "\\main_dex_gen_filter.txt");
+                    generateMainDexListTask.classes = transformClassesAndResourcesWithProguardForVariant.outputs.files
+                    generateMainDexListTask.inputFilter = inputFilter
+                    generateMainDexListTask.mappingFile = mappingFile
+                    generateMainDexListTask.obfuscatedFilter = inputObfuscatedFilter
+                    // not the list of the android plugin, each task would see the other's
+                    // writes as a change of its output and run again
+                    File generatedMainDexList = new File(inputObfuscatedFilter.getParentFile(),
+                            "generated_maindexlist.txt")
+                    generateMainDexListTask.outputMainDexList = generatedMainDexList
+                    generateMainDexListTask.stateFile = new File(inputObfuscatedFilter.getParentFile(),
+                            "maindex-state.bin")
+                    transformClassesWithDexForVariant.dependsOn generateMainDexListTask
+                    useMainDexList(transformClassesWithDexForVariant, generatedMainDexList,
+                            outputMainDexList)
+
+                    if (project.hasProperty('mainDexBatch')) {
+                        if (batchTask == null) {
+                            batchTask = project.tasks.create("generateMainDexLists",
+                                    GenerateMainDexListBatchTask)
                         }
-                        println('begin to generate maindexlist classesJar ' + classesJar
-                                + 'inputObfuscatedFilter ' + inputObfuscatedFilter
-                                + 'outputMainDexList ' + outputMainDexList)
-
-                        ClassReferenceListBuilder.main("--disable-annotation-resolution-workaround",
-                                classesJar.absolutePath, inputObfuscatedFilter.absolutePath,
-                                outputMainDexList.absolutePath);
+                        // the batch does the work of the variant task, for every variant at once
+                        batchTask.addVariant(generateMainDexListTask)
+                        generateMainDexListTask.dependsOn batchTask
                     }
                 }
             }
         }
     }
 
-    void filterInputJar(Set<File> files, File file) {
-        if (file.isDirectory()) {
-            file.listFiles(new FileFilter() {
-                @Override
-                boolean accept(File pathname) {
-                    if (pathname.isFile()) {
-                        println('filter input jar ' + pathname)
-                        files.add(pathname);
-                        return true;
-                    } else {
-                        filterInputJar(files, pathname)
-                    }
-                    return false;
-                }
-            })
-        }
-    }
-
-    def getObfuscatedClasses(File mappingFiles, File input) {
-        if (mappingFiles == null || !mappingFiles.isFile() || input == null) {
-            return new ArrayList<String>();
-        }
-        List<String> keep_lines = Files.readLines(input, Charsets.UTF_8);
-        List<String> lines = Files.readLines(mappingFiles, Charsets.UTF_8);
-
-        Map<String, String> map = Maps.newHashMap();
-        for (String line : lines) {
-            if (line.startsWith(" ")) {
-                continue;
-            }
-            int pos = line.indexOf(" -> ");
-            if (pos == -1) {
-                throw new RuntimeException("unable to read mapping file.");
+    /**
+     * Makes the dex transform read {@code mainDexList} rather than the list of the android
+     * multidexlist transform. The dex transform keeps its list in a field, which its task also
+     * declares as an input. Android plugins without that field get the list copied over their own
+     * before dx runs, the multidexlist transform then runs again on the next build.
+     */
+    static void useMainDexList(Task dexTask, File mainDexList, File androidMainDexList) {
+        dexTask.inputs.file(mainDexList)
+        def transform = dexTask.transform
+        Field field = findField(transform.getClass(), 'mainDexListFile')
+        if (field != null) {
+            field.setAccessible(true)
+            field.set(transform, mainDexList)
+        } else {
+            println('no main dex list field in ' + transform.getClass() + ', copying the list')
+            dexTask.doFirst {
+                Files.copy(mainDexList, androidMainDexList)
             }
-            String fullName = line.substring(0, pos);
-            String obfuscatedName = line.substring(pos + 4, line.size() - 1);
-            map.put(fullName, obfuscatedName);
         }
+    }
 
-        List<String> obfuscatedClass = new ArrayList<String>();
-        for (String keepLine : keep_lines) {
-            String obfuscatedClz = map.get(keepLine);
-            if (obfuscatedClz != null && obfuscatedClz.length() > 0) {
-                obfuscatedClass.add(obfuscatedClz);
+    static Field findField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name)
+            } catch (NoSuchFieldException e) {
+                // in a superclass, if any
             }
         }
-        return obfuscatedClass;
+        return null
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package com.wakao.maindexkeep.task
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFiles
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Generates the main dex lists of several variants in one builder run. Classes that are identical
+ * in several variants are parsed once, and the lists are computed concurrently.
+ * <p>
+ * Each variant is still described by its {@link GenerateMainDexListTask}, which is disabled when
+ * it is part of a batch.
+ */
+public class GenerateMainDexListBatchTask extends DefaultTask {
+
+    List<GenerateMainDexListTask> variantTasks = new ArrayList<GenerateMainDexListTask>()
+
+    /** number of lists computed at once */
+    int numThreads = Runtime.getRuntime().availableProcessors()
+
+    /** whether the builder runs in its own JVM, see {@link GenerateMainDexListTask#isolated} */
+    boolean isolated = true
+
+    /** maximum heap of the isolated builder, shared by all the variants */
+    String maxHeapSize = '2g'
+
+    void addVariant(GenerateMainDexListTask variantTask) {
+        variantTasks.add(variantTask)
+        variantTask.enabled = false
+    }
+
+    /** whether each variant keeps classes with runtime visible annotations, in variant order */
+    @Input
+    List<Boolean> getKeepAnnotated() {
+        return variantTasks.collect { it.keepAnnotated }
+    }
+
+    @InputFiles
+    FileCollection getInputFiles() {
+        def files = project.files()
+        variantTasks.each {
+            files = files + it.classes + project.files(it.inputFilter)
+            if (it.mappingFile != null) {
+                files = files + project.files(it.mappingFile)
+            }
+        }
+        return files
+    }
+
+    @OutputFiles
+    FileCollection getOutputFiles() {
+        return project.files(variantTasks.collect {
+            [it.obfuscatedFilter, it.outputMainDexList, it.stateFile, it.reportFile]
+        })
+    }
+
+    @TaskAction
+    def generate() {
+        File batchFile = new File(temporaryDir, "batch.txt")
+        batchFile.withWriter('UTF-8') { writer ->
+            variantTasks.each {
+                // each list keeps annotated classes or not as its variant does
+                writer.write((it.prepare() + [String.valueOf(it.keepAnnotated)]).join('\t'))
+                writer.write('\n')
+            }
+        }
+
+        List<String> args = new ArrayList<String>()
+        args.add("--num-threads=" + numThreads)
+        args.add("--batch=" + batchFile.absolutePath)
+        GenerateMainDexListTask.runBuilder(project, isolated, maxHeapSize, args)
+        variantTasks.each {
+            it.mainDexReport = it.readReport()
+        }
+    }
+}
@@ -1,17 +1,226 @@
 package com.wakao.maindexkeep.task
 
+import com.droid.multidex.MainDexListBuilder
+import com.google.common.base.Charsets
+import com.google.common.io.Files
+import groovy.json.JsonSlurper
 import org.gradle.api.DefaultTask
+import org.gradle.api.Project
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 
+/**
+ * Generates the main dex list of a variant from the ProGuard output. Every file the list depends
+ * on is declared, so the task is skipped when none of them changed since the last run, and the
+ * builder only parses the classes that changed otherwise.
+ */
 public class GenerateMainDexListTask extends DefaultTask {
-    GenerateMainDexListTask() {
 
+    /** ProGuard output, the classes jar is searched in its directories */
+    @InputFiles
+    FileCollection classes
+
+    /** unobfuscated names of the main dex roots, one per line */
+    @InputFile
+    File inputFilter
+
+    @InputFile
+    @Optional
+    File mappingFile
+
+    /** whether classes with runtime visible annotations are kept */
+    @Input
+    boolean keepAnnotated = false
+
+    /** obfuscated names of the main dex roots, as read by the builder */
+    @OutputFile
+    File obfuscatedFilter
+
+    /** the generated list, read by dx in place of the list of the android plugin */
+    @OutputFile
+    File outputMainDexList
+
+    /** dependency graph kept by the builder between runs, see --incremental-state */
+    @OutputFile
+    File stateFile
+
+    /**
+     * Whether the builder runs in its own JVM. Its caches and the dx intern tables then die with
+     * that JVM instead of staying in the Gradle daemon, and its heap is sized separately.
+     */
+    boolean isolated = true
+
+    /** maximum heap of the isolated builder, as given to -Xmx */
+    String maxHeapSize = '1g'
+
+    /** performance report the builder writes next to the list */
+    @OutputFile
+    File getReportFile() {
+        return new File(outputMainDexList.absolutePath + MainDexListBuilder.REPORT_SUFFIX)
     }
 
+    /** fields of the performance report of the last run, null until the task ran */
+    Map<String, Object> mainDexReport
+
     @TaskAction
     def generate() {
-        println('3**********************************3')
-        println('begin execute generate main dex list')
-        println('***********************************')
+        // the builder checks its own state, class by class
+        List<String> args = new ArrayList<String>()
+        if (!keepAnnotated) {
+            args.add("--disable-annotation-resolution-workaround")
+        }
+        List<String> variant = prepare()
+        args.add("--incremental-state=" + variant[3])
+        args.addAll(variant.subList(0, 3))
+        runBuilder(project, isolated, maxHeapSize, args)
+        mainDexReport = readReport()
+    }
+
+    /**
+     * Finds the classes jar and writes the obfuscated filter.
+     *
+     * @return the classes jar, the obfuscated filter, the output list and the state file paths,
+     * in the order of a line of a builder --batch file
+     */
+    List<String> prepare() {
+        Set<File> files = new LinkedHashSet<>();
+        classes.each {
+            filterInputJar(files, it)
+        }
+        println('input jar size ' + files.size())
+        if (files.isEmpty()) {
+            throw new IllegalStateException("no classes jar found in " + classes.files)
+        }
+        File classesJar = files.iterator().next()
+
+        List<String> obfuscatedClasses = getObfuscatedClasses(mappingFile, inputFilter);
+        obfuscatedFilter.getParentFile().mkdirs()
+        BufferedWriter writer = Files.newWriter(obfuscatedFilter, Charsets.UTF_8)
+        try {
+            for (String line : obfuscatedClasses) {
+                String replaceLine = line.replace(".", "/");
+                println("---generate main dex output replaceLine " + replaceLine + "---");
+                writer.write(replaceLine)
+                writer.write("\n")
+            }
+        } finally {
+            writer.close()
+        }
+        println('begin to generate maindexlist classesJar ' + classesJar
+                + 'inputObfuscatedFilter ' + obfuscatedFilter
+                + 'outputMainDexList ' + outputMainDexList)
+        return [classesJar.absolutePath, obfuscatedFilter.absolutePath,
+                outputMainDexList.absolutePath, stateFile.absolutePath]
+    }
+
+    /**
+     * Runs the builder, in its own JVM when {@code isolated}.
+     */
+    static void runBuilder(Project project, boolean isolated, String heapSize, List<String> args) {
+        if (isolated) {
+            project.javaexec { spec ->
+                spec.classpath(getBuilderClasspath())
+                spec.main = MainDexListBuilder.name
+                spec.maxHeapSize = heapSize
+                spec.args(args)
+            }
+        } else {
+            // run() throws where main() would exit the JVM, that is the Gradle daemon
+            MainDexListBuilder.run(args as String[])
+        }
+    }
+
+    /**
+     * Returns the jar or directory the builder classes were loaded from, that is this plugin.
+     */
+    static File getBuilderClasspath() {
+        return new File(MainDexListBuilder.protectionDomain.codeSource.location.toURI())
+    }
+
+    /**
+     * Reads the performance report written next to the main dex list and logs it.
+     *
+     * @return the report fields, or null if there is no report
+     */
+    def readReport() {
+        if (!reportFile.isFile()) {
+            return null
+        }
+        def report = new JsonSlurper().parse(reportFile, 'UTF-8')
+        logger.lifecycle("main dex list generated in ${report.totalMillis} ms")
+        report.phaseMillis.each { phase, millis ->
+            logger.lifecycle("  ${phase}: ${millis} ms")
+        }
+        report.findAll { it.key != 'phaseMillis' && it.key != 'totalMillis' }.each { name, value ->
+            logger.lifecycle("  ${name}: ${value}")
+        }
+        return report
+    }
+
+    void filterInputJar(Set<File> files, File file) {
+        if (file.isDirectory()) {
+            file.listFiles(new FileFilter() {
+                @Override
+                boolean accept(File pathname) {
+                    if (pathname.isFile()) {
+                        println('filter input jar ' + pathname)
+                        files.add(pathname);
+                        return true;
+                    } else {
+                        filterInputJar(files, pathname)
+                    }
+                    return false;
+                }
+            })
+        }
+    }
+
+    /**
+     * Maps the classes listed in {@code input} to their obfuscated names. The mapping file is
+     * streamed and only the class lines of listed classes are kept, so memory use does not depend
+     * on the size of the mapping. Reading stops as soon as every listed class is resolved.
+     */
+    def getObfuscatedClasses(File mappingFiles, File input) {
+        if (mappingFiles == null || !mappingFiles.isFile() || input == null) {
+            return new ArrayList<String>();
+        }
+        List<String> keep_lines = Files.readLines(input, Charsets.UTF_8);
+        Set<String> unresolved = new HashSet<String>(keep_lines);
+
+        Map<String, String> map = new HashMap<String, String>();
+        BufferedReader reader = Files.newReader(mappingFiles, Charsets.UTF_8)
+        try {
+            String line
+            while (!unresolved.isEmpty() && (line = reader.readLine()) != null) {
+                if (line.startsWith(" ")) {
+                    continue;
+                }
+                int pos = line.indexOf(" -> ");
+                if (pos == -1) {
+                    throw new RuntimeException("unable to read mapping file.");
+                }
+                String fullName = line.substring(0, pos);
+                if (unresolved.remove(fullName)) {
+                    String obfuscatedName = line.substring(pos + 4, line.length() - 1);
+                    map.put(fullName, obfuscatedName);
+                }
+            }
+        } finally {
+            reader.close()
+        }
+
+        List<String> obfuscatedClass = new ArrayList<String>();
+        for (String keepLine : keep_lines) {
+            String obfuscatedClz = map.get(keepLine);
+            if (obfuscatedClz != null && obfuscatedClz.length() > 0) {
+                obfuscatedClass.add(obfuscatedClz);
+            }
+        }
+        return obfuscatedClass;
     }
-}
\ No newline at end of file
+}
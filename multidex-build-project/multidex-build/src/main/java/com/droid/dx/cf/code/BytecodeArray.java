@@ -1276,7 +1276,7 @@ public final class BytecodeArray {
         /** offset of the previously parsed bytecode */
         private int previousOffset;
 
-        BaseVisitor() {
+        public BaseVisitor() {
             previousOffset = -1;
         }
 
@@ -79,6 +79,14 @@ public class ClassPathOpener {
          * @param file {@code non-null;} archive file being processed
          */
         void onProcessArchiveStart(File file);
+
+        /**
+         * Informs consumer that processing of an archive file has ended,
+         * whether all of its files were processed or not.
+         *
+         * @param file {@code non-null;} archive file processed
+         */
+        void onProcessArchiveEnd(File file);
     }
 
     /**
@@ -89,6 +97,22 @@ public class ClassPathOpener {
         boolean accept(String path);
     }
 
+    /**
+     * Filter that may leave out more of the files of some archives than
+     * of the other path elements.
+     */
+    public interface ArchiveFileNameFilter extends FileNameFilter {
+
+        /**
+         * Gets the filter of the files of an archive. It is called just
+         * before the archive is opened, from the thread reading it.
+         *
+         * @param file {@code non-null;} the archive
+         * @return {@code non-null;} filter of the files of the archive
+         */
+        FileNameFilter forArchive(File file);
+    }
+
     /**
      * An accept all filter.
      */
@@ -175,6 +199,20 @@ public class ClassPathOpener {
         }
     }
 
+    /**
+     * Gets the filter of the files of an archive.
+     *
+     * @param filter {@code non-null;} filter of the path element
+     * @param file {@code non-null;} the archive
+     * @return {@code non-null;} the filter of the files of the archive
+     */
+    static FileNameFilter forArchive(FileNameFilter filter, File file) {
+        if (filter instanceof ArchiveFileNameFilter) {
+            return ((ArchiveFileNameFilter) filter).forArchive(file);
+        }
+        return filter;
+    }
+
     /**
      * Sorts java class names such that outer classes preceed their inner
      * classes and "package-info" preceeds all other classes in its package.
@@ -239,6 +277,7 @@ public class ClassPathOpener {
      * @throws IOException on i/o problem
      */
     private boolean processArchive(File file) throws IOException {
+        FileNameFilter archiveFilter = forArchive(filter, file);
         ZipFile zip = new ZipFile(file);
 
         ArrayList<? extends ZipEntry> entriesList
@@ -258,29 +297,33 @@ public class ClassPathOpener {
         byte[] buf = new byte[20000];
         boolean any = false;
 
-        for (ZipEntry one : entriesList) {
-            final boolean isDirectory = one.isDirectory();
-
-            String path = one.getName();
-            if (filter.accept(path)) {
-                final byte[] bytes;
-                if (!isDirectory) {
-                    InputStream in = zip.getInputStream(one);
-
-                    baos.reset();
-                    int read;
-                    while ((read = in.read(buf)) != -1) {
-                        baos.write(buf, 0, read);
+        try {
+            for (ZipEntry one : entriesList) {
+                final boolean isDirectory = one.isDirectory();
+
+                String path = one.getName();
+                if (archiveFilter.accept(path)) {
+                    final byte[] bytes;
+                    if (!isDirectory) {
+                        InputStream in = zip.getInputStream(one);
+
+                        baos.reset();
+                        int read;
+                        while ((read = in.read(buf)) != -1) {
+                            baos.write(buf, 0, read);
+                        }
+
+                        in.close();
+                        bytes = baos.toByteArray();
+                    } else {
+                        bytes = new byte[0];
                     }
 
-                    in.close();
-                    bytes = baos.toByteArray();
-                } else {
-                    bytes = new byte[0];
+                    any |= consumer.processFileBytes(path, one.getTime(), bytes);
                 }
-
-                any |= consumer.processFileBytes(path, one.getTime(), bytes);
             }
+        } finally {
+            consumer.onProcessArchiveEnd(file);
         }
 
         zip.close();
@@ -0,0 +1,296 @@
+package com.droid.dx.cf.direct;
+
+import com.droid.dx.cf.direct.ClassPathOpener.ArchiveFileNameFilter;
+import com.droid.dx.cf.direct.ClassPathOpener.Consumer;
+import com.droid.dx.cf.direct.ClassPathOpener.FileNameFilter;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Opens the class files of several class path elements like a
+ * {@link ClassPathOpener} per element would, but reads and inflates the
+ * files in background threads. Each element is read by its own task of the
+ * given executor into a bounded queue, so several archives are read in
+ * parallel while the consumer is busy with the files read before.
+ * <p>
+ * The consumer is only called from the thread running {@link #process},
+ * with the same calls in the same order as if the elements were processed
+ * one after the other by {@link ClassPathOpener#process}.
+ */
+public class ClassPathPrefetcher {
+
+    /** {@code non-null;} pathnames of the elements, in processing order */
+    private final String[] pathnames;
+    /** whether to sort the files of an element, see {@link ClassPathOpener} */
+    private final boolean sort;
+    /** {@code non-null;} filter of the files to read */
+    private final FileNameFilter filter;
+    /** {@code non-null;} callback interface */
+    private final Consumer consumer;
+    /** {@code non-null;} executor running the reading tasks */
+    private final ExecutorService readers;
+    /** {@code > 0;} maximum number of files read ahead per element */
+    private final int queueCapacity;
+
+    /** set once processing stopped, readers then skip the remaining files */
+    private volatile boolean cancelled;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param pathnames {@code non-null;} path elements to process
+     * @param sort if true, sort such that classes appear before their inner
+     * classes and "package-info" occurs before all other classes in that
+     * package.
+     * @param filter {@code non-null;} filter of the files to read, called
+     * from the reading threads, as is
+     * {@link ArchiveFileNameFilter#forArchive}
+     * @param consumer {@code non-null;} callback interface
+     * @param readers {@code non-null;} executor for the reading tasks, its
+     * number of threads is the number of elements read in parallel. Tasks
+     * must be started in submission order, as a fixed thread pool does.
+     * @param queueCapacity {@code > 0;} maximum number of files read ahead
+     * for each element
+     */
+    public ClassPathPrefetcher(String[] pathnames, boolean sort,
+            FileNameFilter filter, Consumer consumer, ExecutorService readers,
+            int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity <= 0");
+        }
+
+        this.pathnames = pathnames;
+        this.sort = sort;
+        this.filter = filter;
+        this.consumer = consumer;
+        this.readers = readers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Processes the path elements.
+     *
+     * @return the OR of all return values
+     * from {@code Consumer.processFileBytes()}.
+     */
+    public boolean process() {
+        ElementReader[] elements = new ElementReader[pathnames.length];
+        for (int i = 0; i < pathnames.length; i++) {
+            elements[i] = new ElementReader(pathnames[i]);
+            readers.execute(elements[i]);
+        }
+
+        boolean any = false;
+        try {
+            for (ElementReader element : elements) {
+                any |= consume(element);
+            }
+        } finally {
+            cancel(elements);
+        }
+        return any;
+    }
+
+    /**
+     * Hands the files of one element to the consumer as they are read.
+     * Like {@link ClassPathOpener}, an exception of the consumer ends the
+     * processing of the archive the file came from, but not of the other
+     * files of a directory.
+     *
+     * @param element {@code non-null;} the element
+     * @return whether any processing actually happened
+     */
+    private boolean consume(ElementReader element) {
+        boolean any = false;
+        // archive whose remaining files are skipped, if any
+        File failedArchive = null;
+
+        for (;;) {
+            Item item = element.take();
+
+            switch (item.kind) {
+                case Item.FILE:
+                    if (item.archive != null && item.archive == failedArchive) {
+                        break;
+                    }
+                    try {
+                        any |= consumer.processFileBytes(item.name,
+                                item.lastModified, item.bytes);
+                    } catch (Exception ex) {
+                        consumer.onException(ex);
+                        failedArchive = item.archive;
+                    }
+                    break;
+                case Item.ARCHIVE_START:
+                    consumer.onProcessArchiveStart(item.archive);
+                    break;
+                case Item.ARCHIVE_END:
+                    failedArchive = null;
+                    consumer.onProcessArchiveEnd(item.archive);
+                    break;
+                case Item.EXCEPTION:
+                    consumer.onException((Exception) item.failure);
+                    break;
+                default:
+                    if (item.failure instanceof Error) {
+                        throw (Error) item.failure;
+                    } else if (item.failure != null) {
+                        throw (RuntimeException) item.failure;
+                    }
+                    return any;
+            }
+        }
+    }
+
+    /**
+     * Stops the readers still running, releasing the files they read.
+     */
+    private void cancel(ElementReader[] elements) {
+        cancelled = true;
+        for (ElementReader element : elements) {
+            element.queue.clear();
+        }
+    }
+
+    /**
+     * What a reader hands over to the consuming thread.
+     */
+    private static final class Item {
+        static final int FILE = 0;
+        static final int ARCHIVE_START = 1;
+        static final int ARCHIVE_END = 2;
+        static final int EXCEPTION = 3;
+        static final int END = 4;
+
+        final int kind;
+        final String name;
+        final long lastModified;
+        final byte[] bytes;
+        /** {@code null-ok;} archive the file comes from, or that starts or ends */
+        final File archive;
+        /** {@code null-ok;} exception of the reader */
+        final Throwable failure;
+
+        Item(int kind, String name, long lastModified, byte[] bytes,
+                File archive, Throwable failure) {
+            this.kind = kind;
+            this.name = name;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+            this.archive = archive;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Reads one path element with a {@link ClassPathOpener}, queueing
+     * what it reads instead of processing it.
+     */
+    private final class ElementReader
+            implements Runnable, Consumer, ArchiveFileNameFilter {
+        private final String pathname;
+        private final BlockingQueue<Item> queue;
+        /** {@code null-ok;} archive being read, if any */
+        private File archive;
+
+        ElementReader(String pathname) {
+            this.pathname = pathname;
+            this.queue = new ArrayBlockingQueue<Item>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            try {
+                new ClassPathOpener(pathname, sort, this, this).process();
+            } catch (RuntimeException ex) {
+                failure = ex;
+            } catch (Error ex) {
+                failure = ex;
+            } finally {
+                put(new Item(Item.END, null, 0, null, null, failure));
+            }
+        }
+
+        @Override
+        public boolean accept(String path) {
+            return !cancelled && filter.accept(path);
+        }
+
+        @Override
+        public FileNameFilter forArchive(File file) {
+            final FileNameFilter archiveFilter =
+                    ClassPathOpener.forArchive(filter, file);
+            return new FileNameFilter() {
+                @Override
+                public boolean accept(String path) {
+                    return !cancelled && archiveFilter.accept(path);
+                }
+            };
+        }
+
+        @Override
+        public boolean processFileBytes(String name, long lastModified,
+                byte[] bytes) {
+            put(new Item(Item.FILE, name, lastModified, bytes, archive, null));
+            return false;
+        }
+
+        @Override
+        public void onException(Exception ex) {
+            put(new Item(Item.EXCEPTION, null, 0, null, null, ex));
+        }
+
+        @Override
+        public void onProcessArchiveStart(File file) {
+            archive = file;
+            put(new Item(Item.ARCHIVE_START, null, 0, null, file, null));
+        }
+
+        @Override
+        public void onProcessArchiveEnd(File file) {
+            archive = null;
+            put(new Item(Item.ARCHIVE_END, null, 0, null, file, null));
+        }
+
+        /**
+         * Queues an item, waiting for room. Once cancelled, the item is
+         * dropped instead.
+         */
+        private void put(Item item) {
+            boolean interrupted = false;
+            try {
+                for (;;) {
+                    if (cancelled) {
+                        return;
+                    }
+                    try {
+                        queue.put(item);
+                        return;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Takes the next item, waiting for it to be read.
+         */
+        Item take() {
+            try {
+                return queue.take();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(
+                        "Interrupted while reading " + pathname, ex);
+            }
+        }
+    }
+}
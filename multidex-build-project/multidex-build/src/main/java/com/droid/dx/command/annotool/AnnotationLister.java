@@ -121,6 +121,10 @@ class AnnotationLister {
 
                 }
 
+                public void onProcessArchiveEnd(File file) {
+
+                }
+
             });
 
             opener.process();
@@ -0,0 +1,198 @@
+package com.droid.dx.command.dexer;
+
+import com.droid.dex.DexIndexOverflowException;
+import com.droid.dx.dex.cf.ClassIds;
+import com.droid.dx.dex.file.DexFile;
+import com.droid.dx.rop.cst.CstBaseMethodRef;
+import com.droid.dx.rop.cst.CstFieldRef;
+import com.droid.dx.rop.type.Type;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The ids of an output dex file, reserved by the classes committed to it
+ * before their translation. The reserved ids are a superset of the ids the
+ * sections of the dex file end up with, so the dex file can not overflow
+ * once its classes are translated, and it is only rotated when the next
+ * class really does not fit. {@code ClassIdsTest} checks the superset over
+ * a real jar, and a few ids are still left free in every dex file that
+ * holds more than one class, in case a translation adds ids it misses.
+ * <p>
+ * This class is not thread-safe, callers synchronize on their own.
+ */
+final class DexIds {
+
+    /** number of method ids left free in a dex file of several classes */
+    private static final int METHOD_HEADROOM = 2;
+
+    /** number of field ids left free in a dex file of several classes */
+    private static final int FIELD_HEADROOM = 9;
+
+    /** number of type ids left free in a dex file of several classes */
+    private static final int TYPE_HEADROOM = 2;
+
+    /** {@code non-null;} the dex file */
+    private final DexFile dexFile;
+
+    /** {@code > 0;} maximum number of method ids and of field ids */
+    private final int maxMemberIds;
+
+    /** {@code > 0;} maximum number of type ids */
+    private final int maxTypeIds;
+
+    private final Set<CstBaseMethodRef> methods =
+            new HashSet<CstBaseMethodRef>();
+    private final Set<CstFieldRef> fields = new HashSet<CstFieldRef>();
+    private final Set<Type> types = new HashSet<Type>();
+
+    /** number of classes committed to the dex file */
+    private int classCount;
+
+    /**
+     * number of committed classes not yet added to the dex file, their
+     * translation is in progress
+     */
+    private int pendingClasses;
+
+    /** whether no more classes are committed to the dex file */
+    private boolean closed;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param dexFile {@code non-null;} the dex file
+     * @param maxMemberIds {@code > 0;} maximum number of method ids and of
+     * field ids
+     * @param maxTypeIds {@code > 0;} maximum number of type ids
+     */
+    public DexIds(DexFile dexFile, int maxMemberIds, int maxTypeIds) {
+        this.dexFile = dexFile;
+        this.maxMemberIds = maxMemberIds;
+        this.maxTypeIds = maxTypeIds;
+    }
+
+    /**
+     * @return {@code non-null;} the dex file
+     */
+    public DexFile getDexFile() {
+        return dexFile;
+    }
+
+    /**
+     * Commits a class to the dex file if the ids it adds to the ones
+     * already reserved fit.
+     *
+     * @param ids {@code non-null;} the ids of the class
+     * @return whether the class was committed
+     */
+    public boolean tryReserve(ClassIds ids) {
+        if (countNewIds(ids) < 0) {
+            return false;
+        }
+        reserve(ids);
+        return true;
+    }
+
+    /**
+     * Counts the ids a class would add to the ones already reserved.
+     *
+     * @param ids {@code non-null;} the ids of the class
+     * @return the number of new method, field and type ids, or {@code -1}
+     * if they do not fit, headroom included unless the dex file is empty
+     */
+    public int countNewIds(ClassIds ids) {
+        int newMethods = countNew(methods, ids.getMethods());
+        int newFields = countNew(fields, ids.getFields());
+        int newTypes = countNew(types, ids.getTypes());
+        boolean empty = isEmpty();
+        if (methods.size() + newMethods
+                        > maxMemberIds - (empty ? 0 : METHOD_HEADROOM)
+                || fields.size() + newFields
+                        > maxMemberIds - (empty ? 0 : FIELD_HEADROOM)
+                || types.size() + newTypes
+                        > maxTypeIds - (empty ? 0 : TYPE_HEADROOM)) {
+            return -1;
+        }
+        return newMethods + newFields + newTypes;
+    }
+
+    /**
+     * Checks that a class fits in the dex file, which is meant to be
+     * empty: a class that does not fit there fits in no dex file.
+     *
+     * @param name {@code non-null;} name of the class, or of the group of
+     * classes, for the error
+     * @param ids {@code non-null;} the ids of the class
+     * @throws DexIndexOverflowException if the class does not fit
+     */
+    public void checkFits(String name, ClassIds ids) {
+        if (countNewIds(ids) < 0) {
+            throw new DexIndexOverflowException(name + " references "
+                    + ids.getMethods().length + " methods, "
+                    + ids.getFields().length + " fields and "
+                    + ids.getTypes().length + " types, more than a dex file"
+                    + " holds: " + maxMemberIds + " methods or fields, "
+                    + maxTypeIds + " types");
+        }
+    }
+
+    /**
+     * Commits a class to the dex file, once known to fit.
+     *
+     * @param ids {@code non-null;} the ids of the class
+     */
+    public void reserve(ClassIds ids) {
+        addAll(methods, ids.getMethods());
+        addAll(fields, ids.getFields());
+        addAll(types, ids.getTypes());
+        classCount++;
+        pendingClasses++;
+    }
+
+    /**
+     * Records that a committed class was added to the dex file, or failed
+     * to translate.
+     *
+     * @return whether the dex file is now complete, that is closed and
+     * without pending classes
+     */
+    public boolean classDone() {
+        pendingClasses--;
+        return closed && pendingClasses == 0;
+    }
+
+    /**
+     * Stops committing classes to the dex file.
+     *
+     * @return whether the dex file is complete, that is without pending
+     * classes
+     */
+    public boolean close() {
+        closed = true;
+        return pendingClasses == 0;
+    }
+
+    /**
+     * @return whether no class was committed to the dex file
+     */
+    public boolean isEmpty() {
+        return classCount == 0;
+    }
+
+    private static <T> int countNew(Set<T> reserved, T[] ids) {
+        int count = 0;
+        for (T id : ids) {
+            if (!reserved.contains(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static <T> void addAll(Set<T> reserved, T[] ids) {
+        for (T id : ids) {
+            reserved.add(id);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.droid.dx.command.dexer;
+
+import com.droid.dx.dex.cf.ClassIds;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays out classes in dex files knowing all of them, instead of filling
+ * one dex file after the other in input order.
+ * <p>
+ * A top level class and its inner classes share many references, so they
+ * are kept together as one group. Groups are placed in input order, which
+ * already keeps packages together, each into the dex file it adds the
+ * fewest new ids to among those it fits in. A group that does not fit in
+ * the last dex file thus no longer closes it: smaller groups coming later
+ * still fill the room left, and go where their references already are.
+ * This lowers both the number of dex files and the ids repeated across
+ * them.
+ */
+final class DexPacker {
+
+    /**
+     * Creates the dex files classes are packed into.
+     */
+    interface DexFactory {
+
+        /**
+         * @return {@code non-null;} the ids of a new, empty, dex file
+         */
+        DexIds newDexFile();
+    }
+
+    /** {@code non-null;} creates the dex files after the first one */
+    private final DexFactory factory;
+
+    /** {@code non-null;} dex files, in creation order */
+    private final List<DexIds> dexFiles = new ArrayList<DexIds>();
+
+    /**
+     * Constructs an instance.
+     *
+     * @param first {@code non-null;} first dex file to pack classes into,
+     * it may already hold classes
+     * @param factory {@code non-null;} creates the next dex files
+     */
+    DexPacker(DexIds first, DexFactory factory) {
+        this.factory = factory;
+        dexFiles.add(first);
+    }
+
+    /**
+     * Packs classes, reserving their ids in the dex files they are placed
+     * in.
+     *
+     * @param names {@code non-null;} names of the class files, in input
+     * order
+     * @param classes {@code non-null;} ids of the classes, in input order
+     * @return {@code non-null;} the dex file of each class, in input order
+     * @throws com.droid.dex.DexIndexOverflowException if a group of classes
+     * does not fit in a dex file of its own
+     */
+    DexIds[] pack(List<String> names, List<ClassIds> classes) {
+        Map<String, List<Integer>> groups =
+                new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < names.size(); i++) {
+            String topLevel = getTopLevelName(names.get(i));
+            List<Integer> group = groups.get(topLevel);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(topLevel, group);
+            }
+            group.add(Integer.valueOf(i));
+        }
+
+        DexIds[] layout = new DexIds[classes.size()];
+        List<ClassIds> members = new ArrayList<ClassIds>();
+        for (Map.Entry<String, List<Integer>> entry : groups.entrySet()) {
+            List<Integer> group = entry.getValue();
+            members.clear();
+            for (Integer index : group) {
+                members.add(classes.get(index.intValue()));
+            }
+            ClassIds ids = members.size() == 1
+                    ? members.get(0) : ClassIds.union(members);
+
+            DexIds best = null;
+            int bestCount = Integer.MAX_VALUE;
+            for (DexIds dexFile : dexFiles) {
+                int count = dexFile.countNewIds(ids);
+                if (count >= 0 && count < bestCount) {
+                    best = dexFile;
+                    bestCount = count;
+                }
+            }
+            if (best == null) {
+                best = factory.newDexFile();
+                best.checkFits(entry.getKey(), ids);
+                dexFiles.add(best);
+            }
+
+            for (Integer index : group) {
+                best.reserve(classes.get(index.intValue()));
+                layout[index.intValue()] = best;
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * @return {@code non-null;} the dex files, starting with the first
+     * one, in creation order
+     */
+    List<DexIds> getDexFiles() {
+        return dexFiles;
+    }
+
+    /**
+     * Gets the name of the top level class of a class file, by name only.
+     *
+     * @param name {@code non-null;} name of the class file
+     * @return {@code non-null;} the name up to the first {@code $} of the
+     * simple class name, or up to the {@code .class} suffix
+     */
+    private static String getTopLevelName(String name) {
+        int end = name.indexOf('$', name.lastIndexOf('/') + 1);
+        if (end < 0) {
+            end = name.endsWith(".class")
+                    ? name.length() - ".class".length() : name.length();
+        }
+        return name.substring(0, end);
+    }
+}
@@ -21,10 +21,12 @@ import com.droid.dex.util.FileUtils;
 import com.droid.dx.cf.code.SimException;
 import com.droid.dx.cf.direct.ClassPathOpener;
 import com.droid.dx.cf.direct.ClassPathOpener.FileNameFilter;
+import com.droid.dx.cf.direct.ClassPathPrefetcher;
 import com.droid.dx.cf.iface.ParseException;
 import com.droid.dx.command.UsageException;
 import com.droid.dx.dex.DexOptions;
 import com.droid.dx.dex.cf.CfOptions;
+import com.droid.dx.dex.cf.ClassIds;
 import com.droid.dx.dex.cf.CodeStatistics;
 import com.droid.dx.dex.file.ClassDefItem;
 import com.droid.dx.dex.file.DexFile;
@@ -37,9 +39,11 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -54,17 +58,19 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Main class for the class file translator.
@@ -143,13 +149,6 @@ public class Main {
         "transaction", "xml"
     };
 
-    /* Array.newInstance may be added by RopperMachine,
-     * ArrayIndexOutOfBoundsException.<init> may be added by EscapeAnalysis */
-    private static final int MAX_METHOD_ADDED_DURING_DEX_CREATION = 2;
-
-    /* <primitive types box class>.TYPE */
-    private static final int MAX_FIELD_ADDED_DURING_DEX_CREATION = 9;
-
     /** number of errors during processing */
     private static AtomicInteger errors = new AtomicInteger(0);
 
@@ -159,48 +158,83 @@ public class Main {
     /** {@code non-null;} output file in-progress */
     private static DexFile outputDex;
 
+    /** {@code null-ok;} ids reserved in {@link #outputDex}, with multi-dex */
+    private static DexIds outputDexIds;
+
     /**
-     * {@code null-ok;} map of resources to include in the output, or
-     * {@code null} if resources are being ignored
+     * {@code null-ok;} jar the resources and dex files are written to as
+     * they come, or {@code null} if resources are being ignored
      */
-    private static TreeMap<String, byte[]> outputResources;
+    private static OutputJar outputJar;
+
+    /**
+     * {@code null-ok;} file {@link #outputJar} is finished into, a
+     * temporary one when writing to the standard output
+     */
+    private static File outputJarFile;
 
     /** Library .dex files to merge into the output .dex. */
     private static final List<byte[]> libraryDexBuffers = new ArrayList<byte[]>();
 
+    /** Maximum number of files read ahead of the translation per input. */
+    private static final int PREFETCH_QUEUE_SIZE = 256;
+
+    /** Thread pool object used to read and inflate the inputs ahead of
+     * their translation, {@code null} if they are read by the main thread. */
+    private static ExecutorService classPathReaderPool;
+
     /** Thread pool object used for multi-thread class translation. */
     private static ExecutorService classTranslatorPool;
 
-    /** Single thread executor, for collecting results of parallel translation,
-     * and adding classes to dex file in original input file order. */
+    /** Single thread executor, for collecting results of parallel translation
+     * in original input file order. */
     private static ExecutorService classDefItemConsumer;
 
     /** Futures for {@code classDefItemConsumer} tasks. */
     private static List<Future<Boolean>> addToDexFutures =
             new ArrayList<Future<Boolean>>();
 
-    /** Thread pool object used for multi-thread dex conversion (to byte array).
+    /** Thread pool object used for multi-thread dex conversion (to a file).
      * Used in combination with multi-dex support, to allow outputing
      * a completed dex file, in parallel with continuing processing. */
     private static ExecutorService dexOutPool;
 
-    /** Futures for {@code dexOutPool} task. */
-    private static List<Future<byte[]>> dexOutputFutures =
-            new ArrayList<Future<byte[]>>();
+    /** Futures for {@code dexOutPool} task, the files written or {@code null} on failure. */
+    private static List<Future<File>> dexOutputFutures =
+            new ArrayList<Future<File>>();
+
+    /**
+     * Lock object used to add the dex files written to
+     * {@link #dexOutputFiles}, and to the output jar, in order.
+     */
+    private static final Object dexOutputLock = new Object();
+
+    /** whether every dex file added to the output jar was written to it */
+    private static boolean dexJarWritten;
+
+    /** {@code null-ok;} exception of a failed {@code dexOutPool} task, if any */
+    private static ExecutionException dexWriterFailure;
 
     /** Lock object used to to coordinate dex file rotation, and
      * multi-threaded translation. */
     private static Object dexRotationLock = new Object();
 
-    /** Record the number if method indices "reserved" for files
-     * committed to translation in the context of the current dex
-     * file, but not yet added. */
-    private static int maxMethodIdsInProcess = 0;
+    /**
+     * {@code null-ok;} classes read for {@link Arguments#packedDexLayout},
+     * laid out by {@link #layoutPackedClasses} once all of them are read
+     */
+    private static List<PackedClass> packedClasses;
+
+    /** {@code null-ok;} cache of translated classes, if any */
+    private static TranslationCache translationCache;
 
-    /** Record the number if field indices "reserved" for files
-     * committed to translation in the context of the current dex
-     * file, but not yet added. */
-    private static int maxFieldIdsInProcess = 0;
+    /**
+     * With a {@link #translationCache}, the dex files of the classes of
+     * each output dex file, in input order. They are merged into the
+     * output dex file when it is written, its {@link DexFile} stays empty.
+     */
+    private static Map<DexFile, List<byte[]>> classDexes =
+            new ConcurrentHashMap<DexFile, List<byte[]>>();
 
     /** true if any files are successfully processed */
     private static volatile boolean anyFilesProcessed;
@@ -210,7 +244,11 @@ public class Main {
 
     private static Set<String> classesInMainDex = null;
 
-    private static List<byte[]> dexOutputArrays = new ArrayList<byte[]>();
+    /**
+     * The files of the dex files written, or {@code null} on failure, in
+     * order, as they are added to the output jar.
+     */
+    private static List<File> dexOutputFiles = new ArrayList<File>();
 
     private static OutputStreamWriter humanOutWriter = null;
 
@@ -247,10 +285,24 @@ public class Main {
         // empty the list, so that  tools that load dx and keep it around
         // for multiple runs don't reuse older buffers.
         libraryDexBuffers.clear();
+        // nor add the dex files of an older run to the output.
+        addToDexFutures.clear();
+        dexOutputFutures.clear();
+        dexOutputFiles.clear();
+        dexJarWritten = true;
+        dexWriterFailure = null;
 
         args = arguments;
         args.makeOptionsObjects();
 
+        classDexes.clear();
+        translationCache = null;
+        if (args.translationCacheDir != null) {
+            translationCache = new TranslationCache(
+                    new File(args.translationCacheDir), args.cfOptions,
+                    args.dexOptions);
+        }
+
         OutputStream humanOutRaw = null;
         if (args.humanOutName != null) {
             humanOutRaw = openOutput(args.humanOutName);
@@ -264,6 +316,11 @@ public class Main {
                 return runMonoDex();
             }
         } finally {
+            if (outputJar != null) {
+                // Failed before the jar was finished.
+                outputJar.discard();
+                outputJar = null;
+            }
             closeOutput(humanOutRaw);
         }
     }
@@ -306,7 +363,7 @@ public class Main {
         // this array is null if no classes were defined
         byte[] outArray = null;
 
-        if (!outputDex.isEmpty() || (args.humanOutName != null)) {
+        if (!isEmpty(outputDex) || (args.humanOutName != null)) {
             outArray = writeDex(outputDex);
 
             if (outArray == null) {
@@ -324,10 +381,7 @@ public class Main {
             // Effectively free up the (often massive) DexFile memory.
             outputDex = null;
 
-            if (outArray != null) {
-                outputResources.put(com.droid.dex.DexFormat.DEX_IN_JAR_NAME, outArray);
-            }
-            if (!createJar(args.outName)) {
+            if (!finishJar(outArray)) {
                 return 3;
             }
         } else if (outArray != null && args.outName != null) {
@@ -359,9 +413,9 @@ public class Main {
         }
 
         if (outputDex != null) {
-            // this array is null if no classes were defined
-
-            dexOutputFutures.add(dexOutPool.submit(new DexWriter(outputDex)));
+            synchronized(dexRotationLock) {
+                writeDexFile(outputDex);
+            }
 
             // Effectively free up the (often massive) DexFile memory.
             outputDex = null;
@@ -371,44 +425,50 @@ public class Main {
             if (!dexOutPool.awaitTermination(600L, TimeUnit.SECONDS)) {
                 throw new RuntimeException("Timed out waiting for dex writer threads.");
             }
-
-            for (Future<byte[]> f : dexOutputFutures) {
-                dexOutputArrays.add(f.get());
-            }
-
         } catch (InterruptedException ex) {
             dexOutPool.shutdownNow();
             throw new RuntimeException("A dex writer thread has been interrupted.");
-        } catch (Exception e) {
-            dexOutPool.shutdownNow();
-            throw new RuntimeException("Unexpected exception in dex writer thread");
         }
 
-        if (args.jarOutput) {
-            for (int i = 0; i < dexOutputArrays.size(); i++) {
-                outputResources.put(getDexFileName(i),
-                        dexOutputArrays.get(i));
-            }
+        // Each dex file went to the jar as soon as it and the ones before
+        // were written, this only makes sure none is left.
+        addWrittenDexFiles();
+        if (dexWriterFailure != null) {
+            throw new RuntimeException("Unexpected exception in dex writer thread",
+                    dexWriterFailure.getCause());
+        }
+
+        if (dexOutputFiles.contains(null)) {
+            // the failure is reported by writeDex()
+            return 2;
+        }
 
-            if (!createJar(args.outName)) {
+        if (args.jarOutput) {
+            if (!dexJarWritten || !finishJar(null)) {
                 return 3;
             }
-        } else if (args.outName != null) {
-            File outDir = new File(args.outName);
-            assert outDir.isDirectory();
-            for (int i = 0; i < dexOutputArrays.size(); i++) {
-                OutputStream out = new FileOutputStream(new File(outDir, getDexFileName(i)));
-                try {
-                    out.write(dexOutputArrays.get(i));
-                } finally {
-                    closeOutput(out);
-                }
-            }
         }
+        // Otherwise, the dex files are written in place in the output directory.
 
         return 0;
     }
 
+    /**
+     * Gets the file a multi-dex output dex file is written to. That is the
+     * final file in an output directory, or a temporary file to copy to the
+     * output jar.
+     *
+     * @param i {@code >= 0;} index of the dex file
+     */
+    private static File getDexOutputFile(int i) throws IOException {
+        if (!args.jarOutput && args.outName != null) {
+            return new File(args.outName, getDexFileName(i));
+        }
+        File file = File.createTempFile(DEX_PREFIX, DEX_EXTENSION);
+        file.deleteOnExit();
+        return file;
+    }
+
     private static String getDexFileName(int i) {
         if (i == 0) {
             return com.droid.dex.DexFormat.DEX_IN_JAR_NAME;
@@ -465,7 +525,9 @@ public class Main {
         } else if (dexB == null) {
             result = dexA;
         } else {
-            result = new com.droid.dx.merge.DexMerger(new com.droid.dex.Dex[] {dexA, dexB}, CollisionPolicy.KEEP_FIRST).merge();
+            com.droid.dx.merge.DexMerger merger = new com.droid.dx.merge.DexMerger(new com.droid.dex.Dex[] {dexA, dexB}, CollisionPolicy.KEEP_FIRST);
+            merger.setNumThreads(args.numThreads);
+            result = merger.merge();
         }
 
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
@@ -488,7 +550,9 @@ public class Main {
         if (dexes.isEmpty()) {
             return null;
         }
-        com.droid.dex.Dex merged = new com.droid.dx.merge.DexMerger(dexes.toArray(new com.droid.dex.Dex[dexes.size()]), CollisionPolicy.FAIL).merge();
+        com.droid.dx.merge.DexMerger merger = new com.droid.dx.merge.DexMerger(dexes.toArray(new com.droid.dex.Dex[dexes.size()]), CollisionPolicy.FAIL);
+        merger.setNumThreads(args.numThreads);
+        com.droid.dex.Dex merged = merger.merge();
         return merged.getBytes();
     }
 
@@ -501,14 +565,14 @@ public class Main {
     private static boolean processAllFiles() {
         createDexFile();
 
-        if (args.jarOutput) {
-            outputResources = new TreeMap<String, byte[]>();
-        }
-
         anyFilesProcessed = false;
         String[] fileNames = args.fileNames;
         Arrays.sort(fileNames);
 
+        if (args.jarOutput && !startJar(fileNames)) {
+            return false;
+        }
+
         // translate classes in parallel
         classTranslatorPool = new ThreadPoolExecutor(args.numThreads,
                args.numThreads, 0, TimeUnit.SECONDS,
@@ -516,7 +580,10 @@ public class Main {
                new ThreadPoolExecutor.CallerRunsPolicy());
         // collect translated and write to dex in order
         classDefItemConsumer = Executors.newSingleThreadExecutor();
-
+        // read and inflate inputs ahead, several archives in parallel
+        if (args.numThreads > 1) {
+            classPathReaderPool = Executors.newFixedThreadPool(args.numThreads);
+        }
 
         try {
             if (args.mainDexListFile != null) {
@@ -525,47 +592,43 @@ public class Main {
                     new BestEffortMainDexListFilter();
 
                 // forced in main dex
-                for (int i = 0; i < fileNames.length; i++) {
-                    processOne(fileNames[i], mainPassFilter);
-                }
+                DexFile mainDex = outputDex;
+                processAll(fileNames, mainPassFilter);
 
-                if (dexOutputFutures.size() > 0) {
+                if (outputDex != mainDex) {
                     throw new DexException("Too many classes in " + Arguments.MAIN_DEX_LIST_OPTION
                             + ", main dex capacity exceeded");
                 }
 
                 if (args.minimalMainDex) {
                     // start second pass directly in a secondary dex file.
-
-                    // Wait for classes in progress to complete
+                    // Classes in progress still complete the main dex.
                     synchronized(dexRotationLock) {
-                        while(maxMethodIdsInProcess > 0 || maxFieldIdsInProcess > 0) {
-                            try {
-                                dexRotationLock.wait();
-                            } catch(InterruptedException ex) {
-                                /* ignore */
-                            }
-                        }
+                        rotateDexFile();
                     }
-
-                    rotateDexFile();
                 }
 
                 // remaining files
-                for (int i = 0; i < fileNames.length; i++) {
-                    processOne(fileNames[i], new NotFilter(mainPassFilter));
-                }
+                startPackedLayout();
+                processAll(fileNames, new NotFilter(mainPassFilter));
+                layoutPackedClasses();
             } else {
                 // without --main-dex-list
-                for (int i = 0; i < fileNames.length; i++) {
-                    processOne(fileNames[i], ClassPathOpener.acceptAll);
-                }
+                startPackedLayout();
+                processAll(fileNames, ClassPathOpener.acceptAll);
+                layoutPackedClasses();
             }
         } catch (StopProcessing ex) {
             /*
              * Ignore it and just let the error reporting do
              * their things.
              */
+        } finally {
+            packedClasses = null;
+            if (classPathReaderPool != null) {
+                classPathReaderPool.shutdownNow();
+                classPathReaderPool = null;
+            }
         }
 
         try {
@@ -626,23 +689,217 @@ public class Main {
     private static void createDexFile() {
         outputDex = new DexFile(args.dexOptions);
 
+        if (translationCache != null) {
+            classDexes.put(outputDex, new ArrayList<byte[]>());
+        }
+
         if (args.dumpWidth != 0) {
             outputDex.setDumpWidth(args.dumpWidth);
         }
+
+        if (args.multiDex) {
+            outputDexIds = new DexIds(outputDex, args.maxNumberOfIdxPerDex,
+                    com.droid.dex.DexFormat.MAX_TYPE_IDX + 1);
+        }
     }
 
+    /**
+     * Continues in a new dex file. The current one is written as soon as
+     * the classes committed to it are added, possibly later by the
+     * {@link ClassDefItemConsumer} adding the last one. Callers hold
+     * {@link #dexRotationLock}.
+     */
     private static void rotateDexFile() {
         if (outputDex != null) {
-            if (dexOutPool != null) {
-                dexOutputFutures.add(dexOutPool.submit(new DexWriter(outputDex)));
-            } else {
-                dexOutputArrays.add(writeDex(outputDex));
+            if (outputDexIds == null || outputDexIds.close()) {
+                writeDexFile(outputDex);
             }
         }
 
         createDexFile();
     }
 
+    /**
+     * Starts gathering the classes to lay out with {@link DexPacker}, if
+     * {@link Arguments#packedDexLayout} is set.
+     */
+    private static void startPackedLayout() {
+        if (args.packedDexLayout) {
+            packedClasses = new ArrayList<PackedClass>();
+        }
+    }
+
+    /**
+     * Lays out the classes gathered since {@link #startPackedLayout}, and
+     * submits them to translation. The first dex file they are packed into
+     * is the current one, the last one stays current.
+     */
+    private static void layoutPackedClasses() {
+        List<PackedClass> classes = packedClasses;
+        packedClasses = null;
+        if (classes == null || classes.isEmpty()) {
+            return;
+        }
+
+        List<String> names = new ArrayList<String>(classes.size());
+        List<ClassIds> ids = new ArrayList<ClassIds>(classes.size());
+        for (PackedClass clazz : classes) {
+            names.add(clazz.name);
+            ids.add(clazz.ids);
+        }
+        DexIds[] layout;
+        List<DexIds> dexFiles;
+        synchronized(dexRotationLock) {
+            DexPacker packer = new DexPacker(outputDexIds,
+                    new DexPacker.DexFactory() {
+                        @Override
+                        public DexIds newDexFile() {
+                            createDexFile();
+                            return outputDexIds;
+                        }
+                    });
+            layout = packer.pack(names, ids);
+            dexFiles = packer.getDexFiles();
+        }
+
+        // Dex files are completed in order, each one with its classes in
+        // input order.
+        for (int i = 0; i < dexFiles.size(); i++) {
+            DexIds dexIds = dexFiles.get(i);
+            for (int j = 0; j < classes.size(); j++) {
+                if (layout[j] == dexIds) {
+                    PackedClass clazz = classes.get(j);
+                    submitClass(clazz.name, clazz.bytes, clazz.cf, dexIds);
+                    classes.set(j, null);
+                }
+            }
+            if (i < dexFiles.size() - 1) {
+                synchronized(dexRotationLock) {
+                    if (dexIds.close()) {
+                        writeDexFile(dexIds.getDexFile());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a class to the translation phase, then to be added to its
+     * dex file.
+     *
+     * @param dexIds {@code null-ok;} ids of the dex file the class is
+     * committed to, {@code null} without {@link Arguments#multiDex}
+     */
+    private static void submitClass(String name, byte[] bytes,
+            com.droid.dx.cf.direct.DirectClassFile cf, DexIds dexIds) {
+        DexFile dexFile = dexIds != null ? dexIds.getDexFile() : outputDex;
+        Future<?> cdif;
+        if (translationCache != null) {
+            cdif = classTranslatorPool.submit(
+                    new CachedClassTranslatorTask(bytes, cf));
+        } else {
+            cdif = classTranslatorPool.submit(
+                    new ClassTranslatorTask(name, bytes, cf, dexFile));
+        }
+        Future<Boolean> res = classDefItemConsumer.submit(new ClassDefItemConsumer(
+                name, cdif, dexFile, dexIds));
+        addToDexFutures.add(res);
+    }
+
+    /**
+     * Writes a complete dex file, in a {@link #dexOutPool} thread if there
+     * is one. Callers hold {@link #dexRotationLock}, dex files are
+     * completed in order. Once written, the dex file is added to the
+     * output jar by {@link #addWrittenDexFiles}.
+     */
+    private static void writeDexFile(DexFile dexFile) {
+        FutureTask<File> writer = new FutureTask<File>(
+                new DexWriter(dexFile, dexOutputFutures.size())) {
+            @Override
+            protected void done() {
+                addWrittenDexFiles();
+            }
+        };
+        dexOutputFutures.add(writer);
+        dexOutPool.execute(writer);
+    }
+
+    /**
+     * Adds the dex files written to {@link #dexOutputFiles}, and to the
+     * output jar if there is one, in order: each one as soon as it and the
+     * ones before it are written, while the inputs are still processed and
+     * the next dex files written. Called as each {@link DexWriter} task
+     * completes, a dex file written before the ones preceding it waits
+     * for them.
+     */
+    private static void addWrittenDexFiles() {
+        synchronized (dexOutputLock) {
+            for (;;) {
+                Future<File> next;
+                synchronized (dexRotationLock) {
+                    if (dexOutputFiles.size() == dexOutputFutures.size()) {
+                        return;
+                    }
+                    next = dexOutputFutures.get(dexOutputFiles.size());
+                }
+                if (!next.isDone()) {
+                    return;
+                }
+
+                File file;
+                try {
+                    file = next.get();
+                } catch (ExecutionException ex) {
+                    dexWriterFailure = ex;
+                    file = null;
+                } catch (InterruptedException ex) {
+                    // Not waiting, it is done.
+                    throw new AssertionError(ex);
+                }
+                int index = dexOutputFiles.size();
+                dexOutputFiles.add(file);
+                OutputJar jar = outputJar;
+                if (file != null && jar != null) {
+                    dexJarWritten &= addDexToJar(getDexFileName(index), file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes the given pathname elements in order. If there is a
+     * {@link #classPathReaderPool}, their files are read and inflated by
+     * its threads while the files read before are processed.
+     *
+     * @param pathnames {@code non-null;} the pathnames to process
+     * @param filter {@code non-null;} A filter for excluding files.
+     */
+    private static void processAll(String[] pathnames, FileNameFilter filter) {
+        FileBytesConsumer consumer;
+        if (outputJar != null) {
+            RawResourceCopier copier = new RawResourceCopier(filter);
+            filter = copier;
+            consumer = new FileBytesConsumer(copier);
+        } else {
+            consumer = new FileBytesConsumer();
+        }
+
+        if (classPathReaderPool == null) {
+            for (int i = 0; i < pathnames.length; i++) {
+                processOne(pathnames[i], filter, consumer);
+            }
+            return;
+        }
+
+        ClassPathPrefetcher prefetcher = new ClassPathPrefetcher(pathnames,
+                true, filter, consumer, classPathReaderPool,
+                PREFETCH_QUEUE_SIZE);
+
+        if (prefetcher.process()) {
+          updateStatus(true);
+        }
+    }
+
     /**
      * Processes one pathname element.
      *
@@ -650,11 +907,13 @@ public class Main {
      * be the path of a class file, a jar file, or a directory
      * containing class files.
      * @param filter {@code non-null;} A filter for excluding files.
+     * @param consumer {@code non-null;} the consumer of the files
      */
-    private static void processOne(String pathname, FileNameFilter filter) {
+    private static void processOne(String pathname, FileNameFilter filter,
+            FileBytesConsumer consumer) {
         ClassPathOpener opener;
 
-        opener = new ClassPathOpener(pathname, true, filter, new FileBytesConsumer());
+        opener = new ClassPathOpener(pathname, true, filter, consumer);
 
         if (opener.process()) {
           updateStatus(true);
@@ -677,7 +936,7 @@ public class Main {
 
         boolean isClass = name.endsWith(".class");
         boolean isClassesDex = name.equals(com.droid.dex.DexFormat.DEX_IN_JAR_NAME);
-        boolean keepResources = (outputResources != null);
+        boolean keepResources = (outputJar != null);
 
         if (!isClass && !isClassesDex && !keepResources) {
             if (args.verbose) {
@@ -695,9 +954,7 @@ public class Main {
         if (isClass) {
 
             if (keepResources && args.keepClassesInJar) {
-                synchronized (outputResources) {
-                    outputResources.put(fixedName, bytes);
-                }
+                addResourceToJar(fixedName, bytes);
             }
             if (lastModified < minimumFileAge) {
                 return true;
@@ -712,9 +969,7 @@ public class Main {
             }
             return true;
         } else {
-            synchronized (outputResources) {
-                outputResources.put(fixedName, bytes);
-            }
+            addResourceToJar(fixedName, bytes);
             return true;
         }
     }
@@ -755,10 +1010,11 @@ public class Main {
         return cf;
     }
 
-    private static ClassDefItem translateClass(byte[] bytes, com.droid.dx.cf.direct.DirectClassFile cf) {
+    private static ClassDefItem translateClass(byte[] bytes, com.droid.dx.cf.direct.DirectClassFile cf,
+            DexFile dexFile) {
         try {
             return com.droid.dx.dex.cf.CfTranslator.translate(cf, bytes, args.cfOptions,
-                    args.dexOptions, outputDex);
+                    args.dexOptions, dexFile);
         } catch (ParseException ex) {
             com.droid.dx.command.DxConsole.err.println("\ntrouble processing:");
             if (args.debug) {
@@ -771,13 +1027,70 @@ public class Main {
         return null;
     }
 
-    private static boolean addClassToDex(ClassDefItem clazz) {
-        synchronized (outputDex) {
-            outputDex.add(clazz);
-        }
+    /**
+     * Adds a translated class to its dex file. The sections of the dex file
+     * are concurrent, so translator threads add their classes at once, and
+     * the order of the classes is only decided when the dex file is written.
+     */
+    private static boolean addClassToDex(DexFile dexFile, ClassDefItem clazz) {
+        dexFile.add(clazz);
         return true;
     }
 
+    /**
+     * Translates a class into a dex file of its own, or gets that dex file
+     * from the {@link #translationCache}.
+     *
+     * @return {@code null-ok;} the dex file of the class, or {@code null} if
+     * the translation failed
+     */
+    private static byte[] translateToDex(byte[] bytes,
+            com.droid.dx.cf.direct.DirectClassFile cf) throws IOException {
+        byte[] dex = translationCache.get(bytes);
+        if (dex != null) {
+            return dex;
+        }
+
+        DexFile classDex = new DexFile(args.classDexOptions);
+        ClassDefItem clazz = translateClass(bytes, cf, classDex);
+        if (clazz == null) {
+            return null;
+        }
+        classDex.add(clazz);
+        dex = classDex.toDex(null, false);
+        translationCache.put(bytes, dex);
+        return dex;
+    }
+
+    /**
+     * Tells whether an output dex file has no class.
+     */
+    private static boolean isEmpty(DexFile dexFile) {
+        List<byte[]> dexes = classDexes.get(dexFile);
+        return dexFile.isEmpty() && (dexes == null || dexes.isEmpty());
+    }
+
+    /**
+     * Merges the dex files of the classes of an output dex file, that were
+     * translated through the {@link #translationCache}.
+     *
+     * @return {@code non-null;} the merged dex file
+     */
+    private static byte[] mergeClassDexes(DexFile dexFile) throws IOException {
+        List<byte[]> dexes = classDexes.remove(dexFile);
+        if (dexes == null || dexes.isEmpty()) {
+            return dexFile.toDex(null, false);
+        }
+        com.droid.dex.Dex[] inputs = new com.droid.dex.Dex[dexes.size()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new com.droid.dex.Dex(dexes.get(i));
+        }
+        com.droid.dx.merge.DexMerger merger = new com.droid.dx.merge.DexMerger(inputs, CollisionPolicy.FAIL);
+        // With multi-dex, the dex files are already merged concurrently.
+        merger.setNumThreads(args.multiDex ? 1 : args.numThreads);
+        return merger.merge().getBytes();
+    }
+
     /**
      * Check the class name to make sure it's not a "core library"
      * class. If there is a problem, this updates the error count and
@@ -830,7 +1143,10 @@ public class Main {
 
         try {
             try {
-                if (args.methodToDump != null) {
+                if (translationCache != null) {
+                    // The classes are in the dex files of the cache.
+                    outArray = mergeClassDexes(outputDex);
+                } else if (args.methodToDump != null) {
                     /*
                      * Simply dump the requested method. Note: The call
                      * to toDex() is required just to get the underlying
@@ -846,7 +1162,7 @@ public class Main {
                     outArray = outputDex.toDex(humanOutWriter, args.verboseDump);
                 }
 
-                if (args.statistics) {
+                if (args.statistics && translationCache == null) {
                     com.droid.dx.command.DxConsole.out.println(outputDex.getStatistics().toHuman());
                 }
             } finally {
@@ -868,44 +1184,171 @@ public class Main {
     }
 
     /**
-     * Creates a jar file from the resources (including dex file arrays).
+     * Writes a dex file to a file. Unless dumps or the translation cache
+     * need its bytes in memory, it is streamed to the file, so the whole
+     * dex file is never held in a {@code byte[]}.
      *
-     * @param fileName {@code non-null;} name of the file
-     * @return whether the creation was successful
+     * @param file {@code non-null;} where to write the dex file to
+     * @return whether writing was successful
      */
-    private static boolean createJar(String fileName) {
-        /*
-         * Make or modify the manifest (as appropriate), put the dex
-         * array into the resources map, and then process the entire
-         * resources map in a uniform manner.
-         */
+    private static boolean writeDex(DexFile dexFile, File file) {
+        byte[] outArray = null;
+        if (translationCache != null || humanOutWriter != null) {
+            outArray = writeDex(dexFile);
+            if (outArray == null) {
+                return false;
+            }
+        }
 
         try {
-            Manifest manifest = makeManifest();
-            OutputStream out = openOutput(fileName);
-            JarOutputStream jarOut = new JarOutputStream(out, manifest);
-
+            FileOutputStream out = new FileOutputStream(file);
             try {
-                for (Map.Entry<String, byte[]> e :
-                         outputResources.entrySet()) {
-                    String name = e.getKey();
-                    byte[] contents = e.getValue();
-                    JarEntry entry = new JarEntry(name);
-                    int length = contents.length;
+                if (outArray != null) {
+                    out.write(outArray);
+                } else {
+                    dexFile.writeTo(out.getChannel());
+                }
+            } finally {
+                out.close();
+            }
 
+            if (outArray == null && args.statistics) {
+                com.droid.dx.command.DxConsole.out.println(dexFile.getStatistics().toHuman());
+            }
+        } catch (Exception ex) {
+            if (args.debug) {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output:");
+                ex.printStackTrace(com.droid.dx.command.DxConsole.err);
+            } else {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output: " +
+                                   ex.getMessage());
+            }
+            file.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the output jar, with the manifest. Resources and dex files
+     * are then added to it as they come.
+     *
+     * @param fileNames {@code non-null;} the inputs, in processing order
+     * @return whether the jar was started
+     */
+    private static boolean startJar(String[] fileNames) {
+        try {
+            Manifest manifest = makeManifest(readManifest(fileNames));
+            if (isStandardOutput(args.outName)) {
+                outputJarFile = File.createTempFile(DEX_PREFIX, ".jar");
+                outputJarFile.deleteOnExit();
+            } else {
+                outputJarFile = new File(args.outName);
+            }
+            outputJar = new OutputJar(outputJarFile, manifest);
+        } catch (Exception ex) {
+            if (args.debug) {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output:");
+                ex.printStackTrace(com.droid.dx.command.DxConsole.err);
+            } else {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output: " +
+                                   ex.getMessage());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a resource to the output jar. The first resource of a name is
+     * kept, the manifest is the one the jar was started with.
+     *
+     * @param name {@code non-null;} name of the resource
+     * @param bytes {@code non-null;} contents of the resource
+     */
+    private static void addResourceToJar(String name, byte[] bytes) {
+        if (name.equals(MANIFEST_NAME)) {
+            return;
+        }
+
+        if (args.verbose) {
+            com.droid.dx.command.DxConsole.out.println("writing " + name + "; size " + bytes.length + "...");
+        }
+
+        boolean added;
+        try {
+            added = outputJar.add(name, bytes);
+        } catch (IOException ex) {
+            throw new RuntimeException("trouble writing " + name, ex);
+        }
+        if (!added && args.verbose) {
+            com.droid.dx.command.DxConsole.out.println("ignored duplicate resource " + name);
+        }
+    }
+
+    /**
+     * Adds a multi-dex output dex file to the output jar, and deletes it.
+     *
+     * @param name {@code non-null;} name of the entry
+     * @param file {@code non-null;} the dex file
+     * @return whether the dex file was added
+     */
+    private static boolean addDexToJar(String name, File file) {
+        if (args.verbose) {
+            com.droid.dx.command.DxConsole.out.println("writing " + name + "; size " + file.length() + "...");
+        }
+
+        try {
+            outputJar.add(name, file);
+        } catch (Exception ex) {
+            if (args.debug) {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output:");
+                ex.printStackTrace(com.droid.dx.command.DxConsole.err);
+            } else {
+                com.droid.dx.command.DxConsole.err.println("\ntrouble writing output: " +
+                                   ex.getMessage());
+            }
+            return false;
+        } finally {
+            file.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Finishes the output jar, which replaces the output file.
+     *
+     * @param dexArray {@code null-ok;} the dex file to add to the jar last,
+     * if any
+     * @return whether the jar was finished
+     */
+    private static boolean finishJar(byte[] dexArray) {
+        OutputJar jar = outputJar;
+        outputJar = null;
+
+        try {
+            try {
+                if (dexArray != null) {
+                    String name = com.droid.dex.DexFormat.DEX_IN_JAR_NAME;
                     if (args.verbose) {
-                        com.droid.dx.command.DxConsole.out.println("writing " + name + "; size " + length + "...");
+                        com.droid.dx.command.DxConsole.out.println("writing " + name + "; size " + dexArray.length + "...");
                     }
+                    jar.add(name, dexArray);
+                }
+            } catch (IOException ex) {
+                jar.discard();
+                throw ex;
+            }
+            jar.finish();
 
-                    entry.setSize(length);
-                    jarOut.putNextEntry(entry);
-                    jarOut.write(contents);
-                    jarOut.closeEntry();
+            if (isStandardOutput(args.outName)) {
+                OutputStream out = openOutput(args.outName);
+                try {
+                    copyFile(outputJarFile, out);
+                } finally {
+                    closeOutput(out);
+                    outputJarFile.delete();
                 }
-            } finally {
-                jarOut.finish();
-                jarOut.flush();
-                closeOutput(out);
             }
         } catch (Exception ex) {
             if (args.debug) {
@@ -922,13 +1365,79 @@ public class Main {
     }
 
     /**
-     * Creates and returns the manifest to use for the output. This may
-     * modify {@link #outputResources} (removing the pre-existing manifest).
+     * Copies the content of a file to a stream.
+     *
+     * @param file {@code non-null;} the file to copy
+     * @param out {@code non-null;} where to copy the file to
+     */
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the manifest of the inputs, which is the one of the last input
+     * that has one, as it would be the last one processed.
+     *
+     * @param fileNames {@code non-null;} the inputs, in processing order
+     * @return {@code null-ok;} the manifest, or {@code null} if there is none
+     */
+    private static byte[] readManifest(String[] fileNames) throws IOException {
+        byte[] manifestBytes = null;
+
+        for (String fileName : fileNames) {
+            File file = new File(fileName);
+            if (file.isDirectory()) {
+                File manifestFile = new File(file, MANIFEST_NAME);
+                if (manifestFile.isFile()
+                        && fixPath(manifestFile.getPath()).equals(MANIFEST_NAME)) {
+                    manifestBytes = FileUtils.readFile(manifestFile);
+                }
+            } else if (FileUtils.hasArchiveSuffix(fileName)) {
+                ZipFile zip = new ZipFile(file);
+                try {
+                    ZipEntry entry = zip.getEntry(MANIFEST_NAME);
+                    if (entry != null) {
+                        InputStream in = zip.getInputStream(entry);
+                        try {
+                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                            byte[] buffer = new byte[4096];
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                baos.write(buffer, 0, read);
+                            }
+                            manifestBytes = baos.toByteArray();
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    zip.close();
+                }
+            } else if (fixPath(fileName).equals(MANIFEST_NAME)) {
+                manifestBytes = FileUtils.readFile(file);
+            }
+        }
+
+        return manifestBytes;
+    }
+
+    /**
+     * Creates and returns the manifest to use for the output.
      *
+     * @param manifestBytes {@code null-ok;} the manifest of the inputs, if
+     * any
      * @return {@code non-null;} the manifest
      */
-    private static Manifest makeManifest() throws IOException {
-        byte[] manifestBytes = outputResources.get(MANIFEST_NAME);
+    private static Manifest makeManifest(byte[] manifestBytes) throws IOException {
         Manifest manifest;
         Attributes attribs;
 
@@ -940,7 +1449,6 @@ public class Main {
         } else {
             manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
             attribs = manifest.getMainAttributes();
-            outputResources.remove(MANIFEST_NAME);
         }
 
         String createdBy = attribs.getValue(CREATED_BY);
@@ -957,6 +1465,16 @@ public class Main {
         return manifest;
     }
 
+    /**
+     * Tells whether the named file is the standard output, named "-".
+     *
+     * @param name {@code non-null;} the file name
+     */
+    private static boolean isStandardOutput(String name) {
+        return name.equals("-") ||
+                name.startsWith("-.");
+    }
+
     /**
      * Opens and returns the named file for writing, treating "-" specially.
      *
@@ -964,8 +1482,7 @@ public class Main {
      * @return {@code non-null;} the opened file
      */
     private static OutputStream openOutput(String name) throws IOException {
-        if (name.equals("-") ||
-                name.startsWith("-.")) {
+        if (isStandardOutput(name)) {
             return System.out;
         }
 
@@ -1126,6 +1643,112 @@ public class Main {
         pw.flush();
     }
 
+    /**
+     * A filter of the resources of archives that can be copied as they
+     * are stored, by name: neither classes nor the manifest, which are
+     * read, nor directories, which are left to {@link ClassPathOpener}
+     * as before, and named as they would be in the output.
+     */
+    private static class RawResourceFilter implements FileNameFilter {
+        private final FileNameFilter filter;
+
+        private RawResourceFilter(FileNameFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean accept(String path) {
+            return !path.endsWith(".class")
+                    && !path.endsWith("/")
+                    && !path.equals(com.droid.dex.DexFormat.DEX_IN_JAR_NAME)
+                    && !path.equals(MANIFEST_NAME)
+                    && fixPath(path).equals(path)
+                    && filter.accept(path);
+        }
+    }
+
+    /**
+     * Copies the resources of input archives to the output jar as they are
+     * stored, without inflating and deflating them again. Which entries of
+     * an archive are copied is read just before the archive is opened, and
+     * they are left out of the files read from it. They are copied once
+     * the archive is reached in input order, so that the first entry of a
+     * name, in input order, is the one kept whatever the kind of input.
+     */
+    private static class RawResourceCopier
+            implements ClassPathOpener.ArchiveFileNameFilter {
+        private final FileNameFilter filter;
+        private final FileNameFilter resourceFilter;
+        /** entries to copy, of the archives read but not yet reached */
+        private final ConcurrentHashMap<File, OutputJar.RawEntries> pending =
+                new ConcurrentHashMap<File, OutputJar.RawEntries>();
+
+        private RawResourceCopier(FileNameFilter filter) {
+            this.filter = filter;
+            this.resourceFilter = new RawResourceFilter(filter);
+        }
+
+        @Override
+        public boolean accept(String path) {
+            return filter.accept(path);
+        }
+
+        @Override
+        public FileNameFilter forArchive(File file) {
+            OutputJar.RawEntries raw;
+            try {
+                raw = OutputJar.readRaw(file, resourceFilter);
+            } catch (IOException ex) {
+                // Read as any other file of the archive, if it can be.
+                return filter;
+            }
+            if (raw.getNames().isEmpty()) {
+                return filter;
+            }
+            pending.put(file, raw);
+            return new SkipFilter(filter, raw.getNames());
+        }
+
+        /**
+         * Copies the resources of an archive, once reached in input order.
+         *
+         * @param file {@code non-null;} the archive
+         */
+        private void copy(File file) throws IOException {
+            OutputJar.RawEntries raw = pending.remove(file);
+            if (raw == null) {
+                return;
+            }
+            List<String> copied = outputJar.addRaw(raw);
+            if (args.verbose) {
+                for (String name : copied) {
+                    com.droid.dx.command.DxConsole.out.println("copying " + name + "...");
+                }
+            }
+            if (!copied.isEmpty()) {
+                updateStatus(true);
+            }
+        }
+    }
+
+    /**
+     * A filter excluding files by name.
+     */
+    private static class SkipFilter implements FileNameFilter {
+        private final FileNameFilter filter;
+        private final Set<String> skipped;
+
+        private SkipFilter(FileNameFilter filter, Set<String> skipped) {
+            this.filter = filter;
+            this.skipped = skipped;
+        }
+
+        @Override
+        public boolean accept(String path) {
+            return !skipped.contains(path) && filter.accept(path);
+        }
+    }
+
     private static class NotFilter implements FileNameFilter {
         private final FileNameFilter filter;
 
@@ -1228,6 +1851,10 @@ public class Main {
 
         private static final String INPUT_LIST_OPTION = "--input-list";
 
+        private static final String DEX_LAYOUT_OPTION = "--dex-layout";
+
+        private static final String TRANSLATION_CACHE_OPTION = "--translation-cache";
+
         /** whether to run in debug mode */
         public boolean debug = false;
 
@@ -1310,6 +1937,12 @@ public class Main {
         /** Options for dex file output */
         public DexOptions dexOptions;
 
+        /**
+         * Options for the dex files of single classes, as {@link #dexOptions}
+         * but written by one thread, they are too small to split
+         */
+        public DexOptions classDexOptions;
+
         /** number of threads to run with */
         public int numThreads = 1;
 
@@ -1324,6 +1957,16 @@ public class Main {
          * mainDexListFile is specified and non empty. */
         public boolean minimalMainDex = false;
 
+        /** Lay out the classes not forced in main dex with {@link DexPacker}, once all of them
+         * are read, rather than in input order. Set by {@code --dex-layout=packed}, the default
+         * being {@code --dex-layout=sequential}. Requires multiDex. */
+        public boolean packedDexLayout = false;
+
+        /** Optional directory caching translated classes across runs, see
+         * {@link TranslationCache}. Output dex files are then merged from the dex files of
+         * their classes. */
+        public String translationCacheDir = null;
+
         /** Optional list containing inputs read in from a file. */
         private List<String> inputList = null;
 
@@ -1528,6 +2171,18 @@ public class Main {
                     mainDexListFile = parser.getLastValue();
                 } else if (parser.isArg(MINIMAL_MAIN_DEX_OPTION)) {
                     minimalMainDex = true;
+                } else if (parser.isArg(DEX_LAYOUT_OPTION + "=")) {
+                    String layout = parser.getLastValue();
+                    if (layout.equals("packed")) {
+                        packedDexLayout = true;
+                    } else if (layout.equals("sequential")) {
+                        packedDexLayout = false;
+                    } else {
+                        System.err.println("unknown dex layout: " + layout);
+                        throw new UsageException();
+                    }
+                } else if (parser.isArg(TRANSLATION_CACHE_OPTION + "=")) {
+                    translationCacheDir = parser.getLastValue();
                 } else if (parser.isArg("--set-max-idx-number=")) { // undocumented test option
                     maxNumberOfIdxPerDex = Integer.parseInt(parser.getLastValue());
                 } else if(parser.isArg(INPUT_LIST_OPTION + "=")) {
@@ -1579,6 +2234,18 @@ public class Main {
                 throw new UsageException();
             }
 
+            if (packedDexLayout && !multiDex) {
+                System.err.println(DEX_LAYOUT_OPTION + "=packed is only supported in combination with "
+                    + MULTI_DEX_OPTION);
+                throw new UsageException();
+            }
+
+            if (translationCacheDir != null && (humanOutName != null || verboseDump)) {
+                System.err.println(TRANSLATION_CACHE_OPTION
+                    + " is not supported with dump options");
+                throw new UsageException();
+            }
+
             if (multiDex && incremental) {
                 System.err.println(INCREMENTAL_OPTION + " is not supported with "
                     + MULTI_DEX_OPTION);
@@ -1620,6 +2287,10 @@ public class Main {
 
             dexOptions = new DexOptions();
             dexOptions.forceJumbo = forceJumbo;
+            dexOptions.numWriteThreads = numThreads;
+
+            classDexOptions = new DexOptions();
+            classDexOptions.forceJumbo = forceJumbo;
         }
     }
 
@@ -1628,6 +2299,16 @@ public class Main {
      * ClassPathOpener.
      */
     private static class FileBytesConsumer implements ClassPathOpener.Consumer {
+        /** {@code null-ok;} copier of the resources of archives */
+        private final RawResourceCopier copier;
+
+        private FileBytesConsumer() {
+            this(null);
+        }
+
+        private FileBytesConsumer(RawResourceCopier copier) {
+            this.copier = copier;
+        }
 
         @Override
         public boolean processFileBytes(String name, long lastModified,
@@ -1663,6 +2344,17 @@ public class Main {
             if (args.verbose) {
                 com.droid.dx.command.DxConsole.out.println("processing archive " + file + "...");
             }
+            if (copier != null) {
+                try {
+                    copier.copy(file);
+                } catch (IOException ex) {
+                    onException(ex);
+                }
+            }
+        }
+
+        @Override
+        public void onProcessArchiveEnd(File file) {
         }
     }
 
@@ -1688,17 +2380,11 @@ public class Main {
     /**
      * Callable helper class used to sequentially collect the results of
      * the (optionally parallel) translation phase, in correct input file order.
-     * This class is also responsible for coordinating dex file rotation
-     * with the ClassDefItemConsumer class.
-     * We maintain invariant that the number of indices used in the current
-     * dex file plus the max number of indices required by classes passed to
-     * the translation phase and not yet added to the dex file, is less than
-     * or equal to the dex file limit.
-     * For each parsed file, we estimate the maximum number of indices it may
-     * require. If passing the file to the translation phase would invalidate
-     * the invariant, we wait, until the next class is added to the dex file,
-     * and then reevaluate the invariant. If there are no further classes in
-     * the translation phase, we rotate the dex file.
+     * This class is also responsible for dex file rotation.
+     * For each parsed file, we compute the method, field and type ids it
+     * may add to a dex file, and reserve them in the current dex file. If
+     * they do not fit, the class goes to a new dex file, while the classes
+     * still in the translation phase complete the previous one.
      */
     private static class DirectClassFileConsumer implements Callable<Boolean> {
 
@@ -1722,131 +2408,136 @@ public class Main {
 
         private Boolean call(com.droid.dx.cf.direct.DirectClassFile cf) {
 
-            int maxMethodIdsInClass = 0;
-            int maxFieldIdsInClass = 0;
+            DexIds dexIds = null;
 
             if (args.multiDex) {
 
-                // Calculate max number of indices this class will add to the
-                // dex file.
-                // The possibility of overloading means that we can't easily
-                // know how many constant are needed for declared methods and
-                // fields. We therefore make the simplifying assumption that
-                // all constants are external method or field references.
-
-                int constantPoolSize = cf.getConstantPool().size();
-                maxMethodIdsInClass = constantPoolSize + cf.getMethods().size()
-                        + MAX_METHOD_ADDED_DURING_DEX_CREATION;
-                maxFieldIdsInClass = constantPoolSize + cf.getFields().size()
-                        + MAX_FIELD_ADDED_DURING_DEX_CREATION;
-                synchronized(dexRotationLock) {
+                // The ids this class may add to the dex file, the translation
+                // interns the referenced methods and fields into it.
+                ClassIds ids = ClassIds.of(cf, args.cfOptions.localInfo);
 
-                    int numMethodIds;
-                    int numFieldIds;
-                    // Number of indices used in current dex file.
-                    synchronized(outputDex) {
-                        numMethodIds = outputDex.getMethodIds().items().size();
-                        numFieldIds = outputDex.getFieldIds().items().size();
-                    }
-                    // Wait until we're sure this class will fit in the current
-                    // dex file.
-                    while(((numMethodIds + maxMethodIdsInClass + maxMethodIdsInProcess
-                            > args.maxNumberOfIdxPerDex) ||
-                           (numFieldIds + maxFieldIdsInClass + maxFieldIdsInProcess
-                            > args.maxNumberOfIdxPerDex))) {
-
-                        if (maxMethodIdsInProcess > 0 || maxFieldIdsInProcess > 0) {
-                            // There are classes in the translation phase that
-                            // have not yet been added to the dex file, so we
-                            // wait for the next class to complete.
-                            try {
-                                dexRotationLock.wait();
-                            } catch(InterruptedException ex) {
-                                /* ignore */
-                            }
-                        } else if (outputDex.getClassDefs().items().size() > 0) {
-                            // There are no further classes in the translation
-                            // phase, and we have a full dex file. Rotate!
+                if (packedClasses != null) {
+                    // Laid out once all classes are read.
+                    packedClasses.add(new PackedClass(name, bytes, cf, ids));
+                    return true;
+                }
+
+                synchronized(dexRotationLock) {
+                    if (!outputDexIds.tryReserve(ids)) {
+                        if (!outputDexIds.isEmpty()) {
+                            // The dex file is full. Rotate!
                             rotateDexFile();
-                        } else {
-                            // The estimated number of indices is too large for
-                            // an empty dex file. We proceed hoping the actual
-                            // number of indices needed will fit.
-                            break;
-                        }
-                        synchronized(outputDex) {
-                            numMethodIds = outputDex.getMethodIds().items().size();
-                            numFieldIds = outputDex.getFieldIds().items().size();
                         }
+                        outputDexIds.checkFits(name, ids);
+                        outputDexIds.reserve(ids);
                     }
-                    // Add our estimate to the total estimate for
-                    // classes under translation.
-                    maxMethodIdsInProcess += maxMethodIdsInClass;
-                    maxFieldIdsInProcess += maxFieldIdsInClass;
+                    dexIds = outputDexIds;
                 }
             }
 
-            // Submit class to translation phase.
-            Future<ClassDefItem> cdif = classTranslatorPool.submit(
-                    new ClassTranslatorTask(name, bytes, cf));
-            Future<Boolean> res = classDefItemConsumer.submit(new ClassDefItemConsumer(
-                    name, cdif, maxMethodIdsInClass, maxFieldIdsInClass));
-            addToDexFutures.add(res);
+            submitClass(name, bytes, cf, dexIds);
 
             return true;
         }
     }
 
+    /**
+     * A class read for {@link Arguments#packedDexLayout}, waiting for its
+     * dex file to be known.
+     */
+    private static class PackedClass {
+
+        final String name;
+        final byte[] bytes;
+        final com.droid.dx.cf.direct.DirectClassFile cf;
+        final ClassIds ids;
 
-    /** Callable helper class to translate classes in parallel  */
+        private PackedClass(String name, byte[] bytes,
+                com.droid.dx.cf.direct.DirectClassFile cf, ClassIds ids) {
+            this.name = name;
+            this.bytes = bytes;
+            this.cf = cf;
+            this.ids = ids;
+        }
+    }
+
+
+    /** Callable helper class to translate classes in parallel, and add them
+     * to their dex file */
     private static class ClassTranslatorTask implements Callable<ClassDefItem> {
 
         String name;
         byte[] bytes;
         com.droid.dx.cf.direct.DirectClassFile classFile;
+        DexFile dexFile;
 
         private ClassTranslatorTask(String name, byte[] bytes,
-                com.droid.dx.cf.direct.DirectClassFile classFile) {
+                com.droid.dx.cf.direct.DirectClassFile classFile, DexFile dexFile) {
             this.name = name;
             this.bytes = bytes;
             this.classFile = classFile;
+            this.dexFile = dexFile;
         }
 
         @Override
         public ClassDefItem call() {
-            ClassDefItem clazz = translateClass(bytes, classFile);
+            ClassDefItem clazz = translateClass(bytes, classFile, dexFile);
+            if (clazz != null) {
+                addClassToDex(dexFile, clazz);
+            }
             return clazz;
         }
     }
 
+    /** Callable helper class to translate classes in parallel through the
+     * translation cache, into dex files of their own */
+    private static class CachedClassTranslatorTask implements Callable<byte[]> {
+
+        byte[] bytes;
+        com.droid.dx.cf.direct.DirectClassFile classFile;
+
+        private CachedClassTranslatorTask(byte[] bytes,
+                com.droid.dx.cf.direct.DirectClassFile classFile) {
+            this.bytes = bytes;
+            this.classFile = classFile;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            return translateToDex(bytes, classFile);
+        }
+    }
+
     /**
      * Callable helper class used to collect the results of
-     * the parallel translation phase, adding the translated classes to
-     * the current dex file in correct (deterministic) file order.
-     * This class is also responsible for coordinating dex file rotation
-     * with the DirectClassFileConsumer class.
+     * the parallel translation phase, in correct (deterministic) file order.
+     * This class is also responsible for writing a rotated dex file once
+     * its last class is added.
      */
     private static class ClassDefItemConsumer implements Callable<Boolean> {
 
         String name;
-        Future<ClassDefItem> futureClazz;
-        int maxMethodIdsInClass;
-        int maxFieldIdsInClass;
+        /** the {@link ClassDefItem}, or with a translation cache the dex file, of the class */
+        Future<?> futureClazz;
+        DexFile dexFile;
+        DexIds dexIds;
 
-        private ClassDefItemConsumer(String name, Future<ClassDefItem> futureClazz,
-                int maxMethodIdsInClass, int maxFieldIdsInClass) {
+        private ClassDefItemConsumer(String name, Future<?> futureClazz,
+                DexFile dexFile, DexIds dexIds) {
             this.name = name;
             this.futureClazz = futureClazz;
-            this.maxMethodIdsInClass = maxMethodIdsInClass;
-            this.maxFieldIdsInClass = maxFieldIdsInClass;
+            this.dexFile = dexFile;
+            this.dexIds = dexIds;
         }
 
         @Override
         public Boolean call() throws Exception {
             try {
-                ClassDefItem clazz = futureClazz.get();
+                Object clazz = futureClazz.get();
+                if (clazz instanceof byte[]) {
+                    classDexes.get(dexFile).add((byte[]) clazz);
+                }
                 if (clazz != null) {
-                    addClassToDex(clazz);
                     updateStatus(true);
                 }
                 return true;
@@ -1857,34 +2548,34 @@ public class Main {
                 Throwable t = ex.getCause();
                 throw (t instanceof Exception) ? (Exception) t : ex;
             } finally {
-                if (args.multiDex) {
-                    // Having added our actual indicies to the dex file,
-                    // we subtract our original estimate from the total estimate,
-                    // and signal the translation phase, which may be paused
-                    // waiting to determine if more classes can be added to the
-                    // current dex file, or if a new dex file must be created.
+                if (dexIds != null) {
+                    // If the dex file was rotated and this was its last
+                    // class, it is complete.
                     synchronized(dexRotationLock) {
-                        maxMethodIdsInProcess -= maxMethodIdsInClass;
-                        maxFieldIdsInProcess -= maxFieldIdsInClass;
-                        dexRotationLock.notifyAll();
+                        if (dexIds.classDone()) {
+                            writeDexFile(dexFile);
+                        }
                     }
                 }
             }
         }
     }
 
-    /** Callable helper class to convert dex files in worker threads */
-    private static class DexWriter implements Callable<byte[]> {
+    /** Callable helper class to write dex files in worker threads */
+    private static class DexWriter implements Callable<File> {
 
         private DexFile dexFile;
+        private int index;
 
-        private DexWriter(DexFile dexFile) {
+        private DexWriter(DexFile dexFile, int index) {
             this.dexFile = dexFile;
+            this.index = index;
         }
 
         @Override
-        public byte[] call() throws IOException {
-            return writeDex(dexFile);
+        public File call() throws IOException {
+            File file = getDexOutputFile(index);
+            return writeDex(dexFile, file) ? file : null;
         }
     }
 }
@@ -0,0 +1,718 @@
+package com.droid.dx.command.dexer;
+
+import com.droid.dx.cf.direct.ClassPathOpener.FileNameFilter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output jar written while the inputs are processed, so that neither the
+ * resources nor the dex files need to be held until the end. The manifest
+ * is the first entry, the others are in the order they are added in.
+ * <p>
+ * Entries of input archives can be copied as they are stored, without
+ * inflating and deflating them again. {@code java.util.zip} has no way to
+ * read or write the compressed data of an entry, so this reads the
+ * central directory of the input archives and writes the zip format
+ * itself, keeping to what dx needs: no zip64, no comments, no extra
+ * fields but the jar marker of the manifest.
+ * <p>
+ * The jar is written to a temporary file next to the output file, and
+ * only replaces it once finished, so a failed run leaves no partial
+ * output, and the previous output can still be read while the new one is
+ * written.
+ */
+final class OutputJar {
+
+    /** size of the buffers used to copy and deflate */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** signature of a local file header */
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    /** signature of a data descriptor */
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    /** signature of a central directory file header */
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    /** signature of the end of central directory record */
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /** size of a local file header, without the name */
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /** size of a central directory file header, without the name */
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    /** size of the end of central directory record, without the comment */
+    private static final int END_SIZE = 22;
+
+    /** largest size of the archive comment */
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /** compression method of entries as they are */
+    private static final int STORED = 0;
+
+    /** compression method of deflated entries */
+    private static final int DEFLATED = 8;
+
+    /** flag of encrypted entries */
+    private static final int FLAG_ENCRYPTED = 1;
+
+    /** flag of entries followed by a data descriptor */
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    /** flag of entries with an UTF-8 name */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    /** flags kept when copying an entry: deflate options and UTF-8 name */
+    private static final int COPIED_FLAGS = (3 << 1) | FLAG_UTF8;
+
+    /** extra field marking the first entry of a jar, as {@code JarOutputStream} writes */
+    private static final byte[] JAR_MAGIC_EXTRA = { (byte) 0xfe, (byte) 0xca, 0, 0 };
+
+    /** no extra field */
+    private static final byte[] NO_EXTRA = new byte[0];
+
+    /** {@code non-null;} the output file */
+    private final File file;
+
+    /** {@code non-null;} the file being written */
+    private final File tempFile;
+
+    /** {@code non-null;} the stream of {@link #tempFile} */
+    private final FileOutputStream fileOut;
+
+    /** {@code non-null;} buffered {@link #fileOut}, for the headers and deflated data */
+    private final OutputStream out;
+
+    /** {@code >= 0;} number of bytes written */
+    private long written;
+
+    /** DOS time and date of the entries written */
+    private final int dosTime;
+
+    /** {@code non-null;} deflater of the entries written */
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /** {@code non-null;} central directory of the entries written */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /** {@code non-null;} names of the entries written */
+    private final Set<String> names = new HashSet<String>();
+
+    /**
+     * Constructs an instance, starting the jar with its manifest.
+     *
+     * @param file {@code non-null;} the output file
+     * @param manifest {@code non-null;} the manifest of the jar
+     */
+    public OutputJar(File file, Manifest manifest) throws IOException {
+        this.file = file;
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+        fileOut = new FileOutputStream(tempFile);
+        out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+        dosTime = toDosTime(System.currentTimeMillis());
+
+        try {
+            ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+            manifest.write(manifestBytes);
+            names.add(JarFile.MANIFEST_NAME);
+            writeDeflated(JarFile.MANIFEST_NAME, manifestBytes.toByteArray(),
+                    JAR_MAGIC_EXTRA);
+        } catch (IOException ex) {
+            discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * Adds an entry, unless there already is one of the same name.
+     *
+     * @param name {@code non-null;} name of the entry
+     * @param contents {@code non-null;} contents of the entry
+     * @return whether the entry was added
+     */
+    public synchronized boolean add(String name, byte[] contents)
+            throws IOException {
+        if (!names.add(name)) {
+            return false;
+        }
+
+        writeDeflated(name, contents, NO_EXTRA);
+        return true;
+    }
+
+    /**
+     * Adds an entry with the contents of a file, unless there already is
+     * one of the same name. The file is deflated as it is read, its sizes
+     * and CRC follow the data.
+     *
+     * @param name {@code non-null;} name of the entry
+     * @param contents {@code non-null;} file to copy to the entry
+     * @return whether the entry was added
+     */
+    public synchronized boolean add(String name, File contents)
+            throws IOException {
+        if (!names.add(name)) {
+            return false;
+        }
+
+        Entry entry = new Entry(encode(name), FLAG_DATA_DESCRIPTOR | flagsOf(name),
+                DEFLATED, dosTime, NO_EXTRA);
+        writeLocalHeader(entry);
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long start = written;
+        // The deflater reads its input as it goes, so it must not deflate
+        // into the array it reads from.
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] deflated = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(contents);
+        try {
+            deflater.reset();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                size += read;
+                deflater.setInput(buffer, 0, read);
+                while (!deflater.needsInput()) {
+                    drainDeflater(deflated);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                drainDeflater(deflated);
+            }
+        } finally {
+            in.close();
+        }
+
+        entry.crc = crc.getValue();
+        entry.size = checkSize(size);
+        entry.compressedSize = checkSize(written - start);
+
+        ByteBuffer descriptor = newBuffer(16);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        descriptor.putInt((int) entry.crc);
+        descriptor.putInt((int) entry.compressedSize);
+        descriptor.putInt((int) entry.size);
+        write(descriptor);
+        return true;
+    }
+
+    /**
+     * Reads which entries of an archive {@link #addRaw} can copy as they
+     * are stored in it. Entries this cannot copy are left out, and so is
+     * everything if the archive uses zip64 or is not a zip file this
+     * understands. This does not depend on the jar, so archives can be
+     * read ahead of their copy, in other threads.
+     *
+     * @param archive {@code non-null;} the archive
+     * @param filter {@code non-null;} filter of the entries to copy
+     * @return {@code non-null;} the entries to copy
+     */
+    public static RawEntries readRaw(File archive, FileNameFilter filter)
+            throws IOException {
+        RawEntries raw = new RawEntries(archive);
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel in = raf.getChannel();
+            List<Entry> inputEntries = readCentralDirectory(in);
+            if (inputEntries == null) {
+                return raw;
+            }
+
+            ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE);
+            for (Entry one : inputEntries) {
+                if (!filter.accept(one.name) || raw.names.contains(one.name)) {
+                    continue;
+                }
+
+                header.clear();
+                readFully(in, header, one.localHeaderOffset);
+                header.flip();
+                if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    continue;
+                }
+                one.dataOffset = one.localHeaderOffset + LOCAL_HEADER_SIZE
+                        + (header.getShort(26) & 0xffff)
+                        + (header.getShort(28) & 0xffff);
+                if (one.dataOffset + one.compressedSize > in.size()) {
+                    continue;
+                }
+
+                raw.names.add(one.name);
+                raw.entries.add(one);
+            }
+        } finally {
+            raf.close();
+        }
+        return raw;
+    }
+
+    /**
+     * Copies entries read by {@link #readRaw} as they are stored in their
+     * archive, without inflating them. Entries of a name already added are
+     * left out.
+     *
+     * @param raw {@code non-null;} the entries to copy
+     * @return {@code non-null;} names of the entries copied
+     */
+    public synchronized List<String> addRaw(RawEntries raw)
+            throws IOException {
+        List<String> copied = new ArrayList<String>();
+        if (raw.entries.isEmpty()) {
+            return copied;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(raw.archive, "r");
+        try {
+            FileChannel in = raf.getChannel();
+            for (Entry one : raw.entries) {
+                if (!names.add(one.name)) {
+                    continue;
+                }
+
+                Entry entry = new Entry(one.nameBytes, one.flags & COPIED_FLAGS,
+                        one.method, one.dosTime, NO_EXTRA);
+                entry.crc = one.crc;
+                entry.size = one.size;
+                entry.compressedSize = one.compressedSize;
+                writeLocalHeader(entry);
+                transfer(in, one.dataOffset, one.compressedSize);
+                copied.add(one.name);
+            }
+        } finally {
+            raf.close();
+        }
+        return copied;
+    }
+
+    /**
+     * Finishes the jar, and replaces the output file with it.
+     */
+    public synchronized void finish() throws IOException {
+        try {
+            writeCentralDirectory();
+            out.close();
+        } catch (IOException ex) {
+            discard();
+            throw ex;
+        } finally {
+            deflater.end();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            // Some platforms do not rename onto an existing file.
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Unable to write " + file);
+            }
+        }
+    }
+
+    /**
+     * Gives up writing the jar, leaving the output file as it was.
+     */
+    public synchronized void discard() {
+        try {
+            fileOut.close();
+        } catch (IOException ex) {
+            // The file is deleted anyway.
+        }
+        deflater.end();
+        tempFile.delete();
+    }
+
+    /**
+     * Writes an entry deflated, unless it is empty.
+     */
+    private void writeDeflated(String name, byte[] contents, byte[] extra)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+
+        byte[] data;
+        int method;
+        if (contents.length == 0) {
+            data = contents;
+            method = STORED;
+        } else {
+            deflater.reset();
+            deflater.setInput(contents);
+            deflater.finish();
+            ByteArrayOutputStream deflated =
+                    new ByteArrayOutputStream(contents.length / 2 + 64);
+            byte[] buffer = new byte[Math.min(contents.length + 64, BUFFER_SIZE)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                deflated.write(buffer, 0, count);
+            }
+            data = deflated.toByteArray();
+            method = DEFLATED;
+        }
+
+        Entry entry = new Entry(encode(name), flagsOf(name), method, dosTime, extra);
+        entry.crc = crc.getValue();
+        entry.size = contents.length;
+        entry.compressedSize = data.length;
+        writeLocalHeader(entry);
+        out.write(data);
+        written += data.length;
+    }
+
+    /**
+     * Writes out the data the deflater has, during {@link #add(String, File)}.
+     */
+    private void drainDeflater(byte[] buffer) throws IOException {
+        int count = deflater.deflate(buffer);
+        out.write(buffer, 0, count);
+        written += count;
+    }
+
+    /**
+     * Writes the local file header of an entry, and adds it to the
+     * central directory.
+     */
+    private void writeLocalHeader(Entry entry) throws IOException {
+        if (entries.size() == 0xffff || written > 0xffffffffL) {
+            throw new IOException("Output jar too large, zip64 is not supported");
+        }
+
+        entry.localHeaderOffset = written;
+        entries.add(entry);
+
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + entry.nameBytes.length
+                + entry.extra.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) versionNeeded(entry.method));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt(descriptor ? 0 : (int) entry.crc);
+        header.putInt(descriptor ? 0 : (int) entry.compressedSize);
+        header.putInt(descriptor ? 0 : (int) entry.size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) entry.extra.length);
+        header.put(entry.nameBytes);
+        header.put(entry.extra);
+        write(header);
+    }
+
+    /**
+     * Writes the central directory and its end record.
+     */
+    private void writeCentralDirectory() throws IOException {
+        long start = written;
+        for (Entry entry : entries) {
+            ByteBuffer header = newBuffer(CENTRAL_HEADER_SIZE
+                    + entry.nameBytes.length + entry.extra.length);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) versionNeeded(entry.method));
+            header.putShort((short) versionNeeded(entry.method));
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) entry.extra.length);
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) entry.localHeaderOffset);
+            header.put(entry.nameBytes);
+            header.put(entry.extra);
+            write(header);
+        }
+        long size = written - start;
+        if (written > 0xffffffffL) {
+            throw new IOException("Output jar too large, zip64 is not supported");
+        }
+
+        ByteBuffer end = newBuffer(END_SIZE);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk of the central directory
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) size);
+        end.putInt((int) start);
+        end.putShort((short) 0); // comment length
+        write(end);
+    }
+
+    /**
+     * Reads the central directory of an archive.
+     *
+     * @return {@code null-ok;} the entries, or {@code null} if the archive
+     * is not one this can copy entries of
+     */
+    private static List<Entry> readCentralDirectory(FileChannel in)
+            throws IOException {
+        long length = in.size();
+        if (length < END_SIZE) {
+            return null;
+        }
+
+        int tailSize = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = newBuffer(tailSize);
+        readFully(in, tail, length - tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+
+        int count = tail.getShort(end + 10) & 0xffff;
+        long size = tail.getInt(end + 12) & 0xffffffffL;
+        long offset = tail.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL
+                || offset + size > length || size > Integer.MAX_VALUE) {
+            // zip64, or not understood
+            return null;
+        }
+
+        ByteBuffer directory = newBuffer((int) size);
+        readFully(in, directory, offset);
+        List<Entry> result = new ArrayList<Entry>(count);
+        int at = 0;
+        for (int i = 0; i < count; i++) {
+            if (at + CENTRAL_HEADER_SIZE > size
+                    || directory.getInt(at) != CENTRAL_HEADER_SIGNATURE) {
+                return null;
+            }
+            int flags = directory.getShort(at + 8) & 0xffff;
+            int method = directory.getShort(at + 10) & 0xffff;
+            int nameLength = directory.getShort(at + 28) & 0xffff;
+            int extraLength = directory.getShort(at + 30) & 0xffff;
+            int commentLength = directory.getShort(at + 32) & 0xffff;
+            if (at + CENTRAL_HEADER_SIZE + nameLength > size) {
+                return null;
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(at + CENTRAL_HEADER_SIZE);
+            directory.get(nameBytes);
+            Entry entry = new Entry(nameBytes, flags, method,
+                    directory.getInt(at + 12), NO_EXTRA);
+            entry.crc = directory.getInt(at + 16) & 0xffffffffL;
+            entry.compressedSize = directory.getInt(at + 20) & 0xffffffffL;
+            entry.size = directory.getInt(at + 24) & 0xffffffffL;
+            entry.localHeaderOffset = directory.getInt(at + 42) & 0xffffffffL;
+            at += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            if ((flags & FLAG_ENCRYPTED) == 0
+                    && (method == STORED || method == DEFLATED)
+                    && entry.compressedSize != 0xffffffffL
+                    && entry.size != 0xffffffffL
+                    && entry.localHeaderOffset != 0xffffffffL) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies a range of a channel to the jar, directly from channel to
+     * channel.
+     */
+    private void transfer(FileChannel in, long position, long count)
+            throws IOException {
+        out.flush();
+        FileChannel channel = fileOut.getChannel();
+        long done = 0;
+        while (done < count) {
+            long n = in.transferTo(position + done, count - done, channel);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of input archive");
+            }
+            done += n;
+        }
+        written += count;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        written += buffer.position();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of input archive");
+            }
+            position += n;
+        }
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long checkSize(long size) throws IOException {
+        if (size >= 0xffffffffL) {
+            throw new IOException("Output jar entry too large, zip64 is not supported");
+        }
+        return size;
+    }
+
+    private static int versionNeeded(int method) {
+        return method == DEFLATED ? 20 : 10;
+    }
+
+    /**
+     * Gets the flags of an entry written under a name, which are the one
+     * of UTF-8 names if it is not ASCII, as {@code ZipOutputStream} does.
+     */
+    private static int flagsOf(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                return FLAG_UTF8;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] encode(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Converts a time to the DOS time and date of zip entries.
+     */
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Entries of an input archive to copy as they are stored, see
+     * {@link #readRaw}.
+     */
+    public static final class RawEntries {
+        /** {@code non-null;} the archive */
+        private final File archive;
+
+        /** {@code non-null;} the entries, in archive order */
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        /** {@code non-null;} names of the entries */
+        private final Set<String> names = new HashSet<String>();
+
+        private RawEntries(File archive) {
+            this.archive = archive;
+        }
+
+        /**
+         * Gets the names of the entries.
+         *
+         * @return {@code non-null;} the names
+         */
+        public Set<String> getNames() {
+            return names;
+        }
+    }
+
+    /**
+     * Entry of the central directory, of the jar or of an input archive.
+     */
+    private static final class Entry {
+        /** {@code non-null;} the name */
+        final String name;
+
+        /** {@code non-null;} the name, as stored */
+        final byte[] nameBytes;
+
+        /** general purpose flags */
+        final int flags;
+
+        /** compression method */
+        final int method;
+
+        /** DOS time and date */
+        final int dosTime;
+
+        /** {@code non-null;} extra field */
+        final byte[] extra;
+
+        /** CRC-32 of the data */
+        long crc;
+
+        /** size of the data */
+        long size;
+
+        /** size of the data as stored */
+        long compressedSize;
+
+        /** offset of the local file header */
+        long localHeaderOffset;
+
+        /** offset of the data, in an input archive */
+        long dataOffset;
+
+        Entry(byte[] nameBytes, int flags, int method, int dosTime,
+                byte[] extra) {
+            try {
+                this.name = new String(nameBytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError();
+            }
+            this.nameBytes = nameBytes;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.extra = extra;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.droid.dx.command.dexer;
+
+import com.droid.dex.util.FileUtils;
+import com.droid.dx.Version;
+import com.droid.dx.dex.DexOptions;
+import com.droid.dx.dex.cf.CfOptions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of translated classes, each one stored as a dex file of its
+ * own. Entries are addressed by the SHA-1 of the class file bytes and of
+ * everything else the translation depends on: the dx version and the
+ * options. An entry thus never needs to be invalidated, a changed class or
+ * option just addresses another one.
+ * <p>
+ * Entries are written to a temporary file first, then renamed, so
+ * concurrent builds sharing the cache never read a partial entry. Failing
+ * to read or write an entry is not an error, the class is translated as
+ * if it was not cached.
+ */
+final class TranslationCache {
+
+    /** version of the entries, to change when their content changes */
+    private static final String FORMAT = "1";
+
+    /** suffix of the entries */
+    private static final String ENTRY_SUFFIX = ".dex";
+
+    /** {@code non-null;} the cache directory */
+    private final File directory;
+
+    /**
+     * {@code non-null;} digest of the dx version and of the options,
+     * prepended to the class file bytes in entry keys
+     */
+    private final byte[] optionsDigest;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param directory {@code non-null;} the cache directory, created if
+     * needed
+     * @param cfOptions {@code non-null;} the class translation options
+     * @param dexOptions {@code non-null;} the dex file options
+     */
+    public TranslationCache(File directory, CfOptions cfOptions,
+            DexOptions dexOptions) {
+        this.directory = directory;
+
+        MessageDigest digest = newDigest();
+        update(digest, "dx " + Version.VERSION + " cache " + FORMAT
+                + " positions " + cfOptions.positionInfo
+                + " locals " + cfOptions.localInfo
+                + " strict " + cfOptions.strictNameCheck
+                + " optimize " + cfOptions.optimize
+                + " api " + dexOptions.targetApiLevel
+                + " jumbo " + dexOptions.forceJumbo);
+        // The lists select the methods to optimize, by content.
+        updateWithFile(digest, cfOptions.optimizeListFile);
+        updateWithFile(digest, cfOptions.dontOptimizeListFile);
+        optionsDigest = digest.digest();
+    }
+
+    /**
+     * Gets the translation of a class.
+     *
+     * @param classBytes {@code non-null;} the class file bytes
+     * @return {@code null-ok;} the dex file of the class, or {@code null}
+     * if it is not cached
+     */
+    public byte[] get(byte[] classBytes) {
+        File entry = getEntry(classBytes);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            return FileUtils.readFile(entry);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the translation of a class.
+     *
+     * @param classBytes {@code non-null;} the class file bytes
+     * @param dex {@code non-null;} the dex file of the class
+     */
+    public void put(byte[] classBytes, byte[] dex) {
+        File entry = getEntry(classBytes);
+        File dir = entry.getParentFile();
+        File temp = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                return;
+            }
+            temp = File.createTempFile(entry.getName(), ".tmp", dir);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(dex);
+            } finally {
+                out.close();
+            }
+            // Another build may have stored the same entry meanwhile, it
+            // has the same content.
+            if (temp.renameTo(entry)) {
+                temp = null;
+            }
+        } catch (IOException ex) {
+            // Not cached, this is only slower next time.
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the file of the cache entry of a class, named after its key and
+     * in a subdirectory named after the first byte of the key, to keep
+     * directories small.
+     */
+    private File getEntry(byte[] classBytes) {
+        MessageDigest digest = newDigest();
+        digest.update(optionsDigest);
+        digest.update(classBytes);
+        byte[] key = digest.digest();
+
+        StringBuilder name = new StringBuilder(key.length * 2);
+        for (byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(new File(directory, name.substring(0, 2)),
+                name.substring(2) + ENTRY_SUFFIX);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError();
+        }
+    }
+
+    private static void update(MessageDigest digest, String string) {
+        try {
+            digest.update(string.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError();
+        }
+        digest.update((byte) 0);
+    }
+
+    private static void updateWithFile(MessageDigest digest, String fileName) {
+        if (fileName == null) {
+            update(digest, "");
+        } else {
+            digest.update(FileUtils.readFile(fileName));
+            digest.update((byte) 1);
+        }
+    }
+}
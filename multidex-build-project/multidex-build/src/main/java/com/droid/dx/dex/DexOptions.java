@@ -40,6 +40,12 @@ public class DexOptions {
     /** force generation of jumbo opcodes */
     public boolean forceJumbo = false;
 
+    /**
+     * number of threads writing the sections of a dex file to an array,
+     * once they are placed
+     */
+    public int numWriteThreads = 1;
+
     /**
      * Gets the dex file magic number corresponding to this instance.
      */
@@ -0,0 +1,317 @@
+package com.droid.dx.dex.cf;
+
+import com.droid.dx.cf.attrib.AttCode;
+import com.droid.dx.cf.attrib.AttLocalVariableTable;
+import com.droid.dx.cf.code.ByteOps;
+import com.droid.dx.cf.code.BytecodeArray;
+import com.droid.dx.cf.code.LocalVariableList;
+import com.droid.dx.cf.direct.DirectClassFile;
+import com.droid.dx.cf.iface.Field;
+import com.droid.dx.cf.iface.FieldList;
+import com.droid.dx.cf.iface.Method;
+import com.droid.dx.cf.iface.MethodList;
+import com.droid.dx.command.DxConsole;
+import com.droid.dx.rop.annotation.Annotation;
+import com.droid.dx.rop.annotation.Annotations;
+import com.droid.dx.rop.annotation.AnnotationsList;
+import com.droid.dx.rop.annotation.NameValuePair;
+import com.droid.dx.rop.cst.Constant;
+import com.droid.dx.rop.cst.ConstantPool;
+import com.droid.dx.rop.cst.CstAnnotation;
+import com.droid.dx.rop.cst.CstArray;
+import com.droid.dx.rop.cst.CstBaseMethodRef;
+import com.droid.dx.rop.cst.CstEnumRef;
+import com.droid.dx.rop.cst.CstFieldRef;
+import com.droid.dx.rop.cst.CstInterfaceMethodRef;
+import com.droid.dx.rop.cst.CstMethodRef;
+import com.droid.dx.rop.cst.CstNat;
+import com.droid.dx.rop.cst.CstString;
+import com.droid.dx.rop.cst.CstType;
+import com.droid.dx.rop.type.Prototype;
+import com.droid.dx.rop.type.Type;
+import com.droid.dx.rop.type.TypeList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The method, field and type ids a class may add to a dex file through
+ * {@link CfTranslator}, read from the parsed class before its translation. Beside the references of the
+ * class itself, this includes those of its annotations, including the
+ * system annotations the translation adds, and the few references the
+ * translation may synthesize for its code.
+ */
+public final class ClassIds {
+
+    /**
+     * {@code non-null;} options used to translate annotations here, warnings
+     * are already given by the actual translation
+     */
+    private static final CfOptions QUIET_OPTIONS = new CfOptions();
+
+    static {
+        QUIET_OPTIONS.warn = DxConsole.noop;
+    }
+
+    /**
+     * {@code non-null;} method called in place of {@code multianewarray},
+     * see {@code RopperMachine}
+     */
+    private static final CstMethodRef ARRAY_NEW_INSTANCE = new CstMethodRef(
+            new CstType(Type.internClassName("java/lang/reflect/Array")),
+            new CstNat(new CstString("newInstance"),
+                    new CstString("(Ljava/lang/Class;[I)Ljava/lang/Object;")));
+
+    /**
+     * {@code non-null;} constructor called by the array accesses that
+     * escape analysis replaces, see {@code EscapeAnalysis}
+     */
+    private static final CstMethodRef INDEX_EXCEPTION_INIT = new CstMethodRef(
+            new CstType(Type.intern(
+                    "Ljava/lang/ArrayIndexOutOfBoundsException;")),
+            new CstNat(new CstString("<init>"), new CstString("(I)V")));
+
+    /** {@code non-null;} methods, interface methods as plain methods */
+    private final CstBaseMethodRef[] methods;
+
+    /** {@code non-null;} fields */
+    private final CstFieldRef[] fields;
+
+    /** {@code non-null;} types */
+    private final Type[] types;
+
+    private ClassIds(Set<CstBaseMethodRef> methods, Set<CstFieldRef> fields,
+            Set<Type> types) {
+        this.methods = methods.toArray(new CstBaseMethodRef[methods.size()]);
+        this.fields = fields.toArray(new CstFieldRef[fields.size()]);
+        this.types = types.toArray(new Type[types.size()]);
+    }
+
+    /**
+     * Collects the ids of a class.
+     *
+     * @param cf {@code non-null;} the parsed class
+     * @param localInfo whether local variable information is kept, the
+     * types of the locals are then added
+     * @return {@code non-null;} the ids the class may add to a dex file
+     */
+    public static ClassIds of(DirectClassFile cf, boolean localInfo) {
+        Collector collector = new Collector(localInfo);
+        collector.addClass(cf);
+        return new ClassIds(collector.methods, collector.fields,
+                collector.types);
+    }
+
+    /**
+     * Merges the ids of several classes.
+     *
+     * @param classes {@code non-null;} the ids of the classes
+     * @return {@code non-null;} the ids any of the classes may add to a dex
+     * file
+     */
+    public static ClassIds union(List<ClassIds> classes) {
+        Set<CstBaseMethodRef> methods = new HashSet<CstBaseMethodRef>();
+        Set<CstFieldRef> fields = new HashSet<CstFieldRef>();
+        Set<Type> types = new HashSet<Type>();
+        for (ClassIds ids : classes) {
+            Collections.addAll(methods, ids.methods);
+            Collections.addAll(fields, ids.fields);
+            Collections.addAll(types, ids.types);
+        }
+        return new ClassIds(methods, fields, types);
+    }
+
+    /**
+     * @return {@code non-null;} the methods, not to be modified
+     */
+    public CstBaseMethodRef[] getMethods() {
+        return methods;
+    }
+
+    /**
+     * @return {@code non-null;} the fields, not to be modified
+     */
+    public CstFieldRef[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return {@code non-null;} the types, not to be modified
+     */
+    public Type[] getTypes() {
+        return types;
+    }
+
+    /**
+     * Gathers the ids of a class, and the types of every method and field.
+     */
+    private static final class Collector extends BytecodeArray.BaseVisitor {
+        private final boolean localInfo;
+        private final Set<CstBaseMethodRef> methods =
+                new HashSet<CstBaseMethodRef>();
+        private final Set<CstFieldRef> fields = new HashSet<CstFieldRef>();
+        private final Set<Type> types = new HashSet<Type>();
+
+        Collector(boolean localInfo) {
+            this.localInfo = localInfo;
+        }
+
+        void addClass(DirectClassFile cf) {
+            CstType thisClass = cf.getThisClass();
+            addType(thisClass.getClassType());
+            if (cf.getSuperclass() != null) {
+                addType(cf.getSuperclass().getClassType());
+            }
+            addTypes(cf.getInterfaces());
+
+            FieldList fieldList = cf.getFields();
+            for (int i = 0; i < fieldList.size(); i++) {
+                Field field = fieldList.get(i);
+                addField(new CstFieldRef(thisClass, field.getNat()));
+                addAnnotations(AttributeTranslator.getAnnotations(
+                        field.getAttributes()));
+            }
+
+            MethodList methodList = cf.getMethods();
+            for (int i = 0; i < methodList.size(); i++) {
+                Method method = methodList.get(i);
+                addMethod(new CstMethodRef(thisClass, method.getNat()));
+                addAnnotations(
+                        AttributeTranslator.getMethodAnnotations(method));
+                AnnotationsList parameterAnnotations =
+                        AttributeTranslator.getParameterAnnotations(method);
+                for (int j = 0; j < parameterAnnotations.size(); j++) {
+                    addAnnotations(parameterAnnotations.get(j));
+                }
+                AttCode code = (AttCode)
+                        method.getAttributes().findFirst(AttCode.ATTRIBUTE_NAME);
+                if (code != null) {
+                    addCode(code);
+                }
+            }
+
+            addAnnotations(
+                    AttributeTranslator.getClassAnnotations(cf, QUIET_OPTIONS));
+
+            ConstantPool pool = cf.getConstantPool();
+            for (int i = 0; i < pool.size(); i++) {
+                addConstant(pool.getOrNull(i));
+            }
+        }
+
+        private void addCode(AttCode code) {
+            // catch-all handlers and frame merges may use java.lang.Object
+            addType(Type.OBJECT);
+            code.getCode().forEach(this);
+
+            if (localInfo) {
+                AttLocalVariableTable table = (AttLocalVariableTable)
+                        code.getAttributes().findFirst(
+                                AttLocalVariableTable.ATTRIBUTE_NAME);
+                if (table != null) {
+                    LocalVariableList locals = table.getLocalVariables();
+                    for (int i = 0; i < locals.size(); i++) {
+                        addType(locals.get(i).getType());
+                    }
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void visitConstant(int opcode, int offset, int length,
+                Constant cst, int value) {
+            if (opcode == ByteOps.ANEWARRAY) {
+                addType(((CstType) cst).getClassType().getArrayType());
+                addMethod(INDEX_EXCEPTION_INIT);
+            } else if (opcode == ByteOps.MULTIANEWARRAY) {
+                // Array.newInstance() of the component class
+                Type componentType = ((CstType) cst).getClassType();
+                for (int i = 0; i < value; i++) {
+                    componentType = componentType.getComponentType();
+                }
+                if (componentType.isPrimitive()) {
+                    addField(CstFieldRef.forPrimitiveType(componentType));
+                } else {
+                    addType(componentType);
+                }
+                addMethod(ARRAY_NEW_INSTANCE);
+                addMethod(INDEX_EXCEPTION_INIT);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void visitNewarray(int offset, int length, CstType type,
+                ArrayList<Constant> initVals) {
+            addType(type.getClassType());
+            addMethod(INDEX_EXCEPTION_INIT);
+        }
+
+        private void addConstant(Constant cst) {
+            if (cst instanceof CstType) {
+                addType(((CstType) cst).getClassType());
+            } else if (cst instanceof CstInterfaceMethodRef) {
+                addMethod(((CstInterfaceMethodRef) cst).toMethodRef());
+            } else if (cst instanceof CstBaseMethodRef) {
+                addMethod((CstBaseMethodRef) cst);
+            } else if (cst instanceof CstFieldRef) {
+                addField((CstFieldRef) cst);
+            } else if (cst instanceof CstEnumRef) {
+                addField(((CstEnumRef) cst).getFieldRef());
+            } else if (cst instanceof CstAnnotation) {
+                addAnnotation(((CstAnnotation) cst).getAnnotation());
+            } else if (cst instanceof CstArray) {
+                CstArray.List list = ((CstArray) cst).getList();
+                for (int i = 0; i < list.size(); i++) {
+                    addConstant(list.get(i));
+                }
+            }
+        }
+
+        private void addAnnotations(Annotations annotations) {
+            for (Annotation annotation : annotations.getAnnotations()) {
+                addAnnotation(annotation);
+            }
+        }
+
+        private void addAnnotation(Annotation annotation) {
+            addType(annotation.getType().getClassType());
+            for (NameValuePair pair : annotation.getNameValuePairs()) {
+                addConstant(pair.getValue());
+            }
+        }
+
+        private void addMethod(CstBaseMethodRef method) {
+            if (methods.add(method)) {
+                addType(method.getDefiningClass().getClassType());
+                Prototype prototype = method.getPrototype();
+                addType(prototype.getReturnType());
+                addTypes(prototype.getParameterTypes());
+            }
+        }
+
+        private void addField(CstFieldRef field) {
+            if (fields.add(field)) {
+                addType(field.getDefiningClass().getClassType());
+                addType(field.getType());
+            }
+        }
+
+        private void addTypes(TypeList list) {
+            for (int i = 0; i < list.size(); i++) {
+                addType(list.getType(i));
+            }
+        }
+
+        private void addType(Type type) {
+            // the simulator also uses the component types of arrays
+            while (types.add(type) && type.isArray()) {
+                type = type.getComponentType();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.droid.dx.dex.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map from keys to the items of a section, which threads translating
+ * classes add to concurrently, without a lock shared by the whole section.
+ * The values are listed in key order, as a {@code TreeMap} would, so the
+ * order of the items decided when the section is prepared does not depend
+ * on the order they were added in.
+ * <p>
+ * The values are sorted once and kept as long as no item is added. Items
+ * are never removed, so a sorted list of as many items as the map holds is
+ * still current; one sorted while items were added is sorted again.
+ * Sections only list their items once prepared anyway.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the items
+ */
+final class ConcurrentItemMap<K extends Comparable<? super K>, V> {
+
+    /** {@code non-null;} the items */
+    private final ConcurrentHashMap<K, V> items =
+            new ConcurrentHashMap<K, V>();
+
+    /** {@code null-ok;} the items in key order, as last sorted */
+    private volatile List<V> sorted;
+
+    /**
+     * Gets the item of a key.
+     *
+     * @param key {@code non-null;} the key
+     * @return {@code null-ok;} the item, or {@code null} if there is none
+     */
+    public V get(K key) {
+        return items.get(key);
+    }
+
+    /**
+     * Adds an item unless its key already has one.
+     *
+     * @param key {@code non-null;} the key
+     * @param item {@code non-null;} the item
+     * @return {@code null-ok;} the item already added for the key, or
+     * {@code null} if {@code item} was added
+     */
+    public V putIfAbsent(K key, V item) {
+        return items.putIfAbsent(key, item);
+    }
+
+    /**
+     * @return {@code >= 0;} the number of items
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return {@code non-null;} the items in key order, not to be modified
+     */
+    public Collection<V> values() {
+        List<V> result = sorted;
+        if (result == null || result.size() != items.size()) {
+            List<Map.Entry<K, V>> entries =
+                    new ArrayList<Map.Entry<K, V>>(items.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<K, V>>() {
+                @Override
+                public int compare(Map.Entry<K, V> a, Map.Entry<K, V> b) {
+                    return a.getKey().compareTo(b.getKey());
+                }
+            });
+            result = new ArrayList<V>(entries.size());
+            for (Map.Entry<K, V> entry : entries) {
+                result.add(entry.getValue());
+            }
+            result = Collections.unmodifiableList(result);
+            sorted = result;
+        }
+        return result;
+    }
+}
@@ -25,12 +25,20 @@ import com.droid.dx.rop.cst.CstFieldRef;
 import com.droid.dx.rop.cst.CstType;
 import com.droid.dx.rop.type.Type;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.Adler32;
 
 /**
@@ -38,6 +46,18 @@ import java.util.zip.Adler32;
  * file, which itself consists of a set of Dalvik classes.
  */
 public final class DexFile {
+    /**
+     * minimum size of a file for its sections to be written concurrently,
+     * smaller ones are written faster than tasks are handed out
+     */
+    private static final int MIN_CONCURRENT_WRITE_SIZE = 256 * 1024;
+
+    /**
+     * {@code null-ok;} pool writing the sections, shared by all the
+     * instances, created on first use
+     */
+    private static ForkJoinPool writePool;
+
     /** options controlling the creation of the file */
     private DexOptions dexOptions;
 
@@ -488,6 +508,95 @@ public final class DexFile {
      */
     private com.droid.dx.util.ByteArrayAnnotatedOutput toDex0(boolean annotate,
                                                               boolean verbose) {
+        placeSections();
+
+        byte[] barr = new byte[fileSize];
+        com.droid.dx.util.ByteArrayAnnotatedOutput out = new com.droid.dx.util.ByteArrayAnnotatedOutput(barr);
+
+        if (annotate) {
+            out.enableAnnotations(dumpWidth, verbose);
+            writeSections(out);
+        } else if (dexOptions.numWriteThreads > 1
+                && fileSize >= MIN_CONCURRENT_WRITE_SIZE) {
+            writeSectionsConcurrently(barr);
+        } else {
+            writeSections(out);
+        }
+
+        // Perform final bookkeeping.
+
+        calcSignature(barr);
+        calcChecksum(barr);
+
+        if (annotate) {
+            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
+                    "\nmethod code index:\n\n");
+            getStatistics().writeAnnotation(out);
+            out.finishAnnotating();
+        }
+
+        return out;
+    }
+
+    /**
+     * Writes the contents of this instance as a {@code .dex} file to a
+     * channel, streaming the sections rather than holding the whole file
+     * in memory. The signature and checksum are computed as the sections
+     * are written, and the header is patched with them at the end.
+     *
+     * @param channel {@code non-null;} where to write to, from position
+     * {@code 0}
+     */
+    public void writeTo(FileChannel channel) throws IOException {
+        placeSections();
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        Adler32 a32 = new Adler32();
+
+        channel.position(0);
+        SignedOutputStream signed = new SignedOutputStream(
+                Channels.newOutputStream(channel), md, a32);
+        com.droid.dx.util.StreamAnnotatedOutput out =
+            new com.droid.dx.util.StreamAnnotatedOutput(signed);
+        try {
+            writeSections(out);
+        } catch (com.droid.dex.util.ExceptionWithContext ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+        out.flush();
+
+        /*
+         * The checksum covers the signature, that precedes the bytes
+         * it was computed over so far.
+         */
+        byte[] signature = md.digest();
+        Adler32 signatureA32 = new Adler32();
+        signatureA32.update(signature);
+        int sum = (int) combineAdler32(signatureA32.getValue(),
+                a32.getValue(), fileSize - 32);
+
+        ByteBuffer patch = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt(sum);
+        patch.put(signature);
+        patch.flip();
+        while (patch.hasRemaining()) {
+            channel.write(patch, 8 + patch.position());
+        }
+    }
+
+    /**
+     * Prepares the sections and places them within the file, which sets
+     * {@link #fileSize}.
+     */
+    private void placeSections() {
         /*
          * The following is ordered so that the prepare() calls which
          * add items happen before the calls to the sections that get
@@ -545,15 +654,17 @@ public final class DexFile {
             }
         }
 
-        // Write out all the sections.
-
         fileSize = offset;
-        byte[] barr = new byte[fileSize];
-        com.droid.dx.util.ByteArrayAnnotatedOutput out = new com.droid.dx.util.ByteArrayAnnotatedOutput(barr);
+    }
 
-        if (annotate) {
-            out.enableAnnotations(dumpWidth, verbose);
-        }
+    /**
+     * Writes out all the sections, once placed.
+     *
+     * @param out {@code non-null;} where to write to, from offset
+     * {@code 0}
+     */
+    private void writeSections(com.droid.dx.util.AnnotatedOutput out) {
+        int count = sections.length;
 
         for (int i = 0; i < count; i++) {
             try {
@@ -580,20 +691,110 @@ public final class DexFile {
         if (out.getCursor() != fileSize) {
             throw new RuntimeException("foreshortened write");
         }
+    }
 
-        // Perform final bookkeeping.
+    /**
+     * Writes out all the sections, once placed, each one by a task of a
+     * fork-join pool. Their offsets are known, so each task writes its
+     * section to its own range of the array, which is otherwise left
+     * zeroed as the padding between sections is.
+     *
+     * @param barr {@code non-null;} where to write to, of the size of
+     * the file
+     */
+    private void writeSectionsConcurrently(byte[] barr) {
+        int count = sections.length;
+        final SectionWriter[] writers = new SectionWriter[count];
+        AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
 
-        calcSignature(barr);
-        calcChecksum(barr);
+        for (int i = 0; i < count; i++) {
+            writers[i] = new SectionWriter(i, barr, failure);
+        }
 
-        if (annotate) {
-            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
-                    "\nmethod code index:\n\n");
-            getStatistics().writeAnnotation(out);
-            out.finishAnnotating();
+        getWritePool(dexOptions.numWriteThreads).invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(writers);
+            }
+        });
+
+        // Rethrown here rather than by the pool, which may wrap it.
+        if (failure.get() != null) {
+            throw failure.get();
         }
+    }
 
-        return out;
+    /**
+     * Gets the pool writing the sections. It is replaced rather than shut
+     * down when asked for another parallelism, as it may still be in use,
+     * its threads end once idle.
+     *
+     * @param parallelism {@code > 0;} the number of threads
+     * @return {@code non-null;} the pool
+     */
+    private static synchronized ForkJoinPool getWritePool(int parallelism) {
+        if (writePool == null || writePool.getParallelism() != parallelism) {
+            writePool = new ForkJoinPool(parallelism);
+        }
+        return writePool;
+    }
+
+    /**
+     * Task writing one of the sections to its range of the file array.
+     */
+    private final class SectionWriter extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** index of the section */
+        private final int index;
+
+        /** {@code non-null;} the file array */
+        private final byte[] barr;
+
+        /** {@code non-null;} where to record the first failure */
+        private final AtomicReference<RuntimeException> failure;
+
+        SectionWriter(int index, byte[] barr,
+                AtomicReference<RuntimeException> failure) {
+            this.index = index;
+            this.barr = barr;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            com.droid.dx.dex.file.Section one = sections[index];
+            try {
+                int start = one.getFileOffset();
+                com.droid.dx.util.ByteArrayAnnotatedOutput out =
+                    new com.droid.dx.util.ByteArrayAnnotatedOutput(barr, start);
+                one.writeTo(out);
+
+                /*
+                 * As in writeSections(), a section may end short of the
+                 * next one, the bytes left are zeroes, but the last one
+                 * ends the file.
+                 */
+                if (index == sections.length - 1) {
+                    if (out.getCursor() != fileSize) {
+                        throw new RuntimeException("foreshortened write");
+                    }
+                } else {
+                    int excess = out.getCursor() - sections[index + 1].getFileOffset();
+                    if (excess > 0) {
+                        throw new com.droid.dex.util.ExceptionWithContext(
+                                "excess write of " + excess);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                failure.compareAndSet(null,
+                        com.droid.dex.util.ExceptionWithContext.withContext(ex,
+                                "...while writing section " + index));
+            }
+        }
     }
 
     /**
@@ -657,4 +858,69 @@ public final class DexFile {
         bytes[10] = (byte) (sum >> 16);
         bytes[11] = (byte) (sum >> 24);
     }
+
+    /**
+     * Combines the Adler-32 checksums of two sequences of bytes into the
+     * checksum of their concatenation, as zlib's {@code adler32_combine}
+     * does.
+     *
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 {@code >= 0;} length of the second sequence
+     * @return the checksum of the first sequence followed by the second
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Stream computing the signature and the checksum of the bytes written
+     * after the signature, that is from offset {@code 32}.
+     */
+    private static final class SignedOutputStream extends FilterOutputStream {
+        private final MessageDigest md;
+        private final Adler32 a32;
+        /** number of bytes written so far */
+        private long written;
+
+        SignedOutputStream(OutputStream out, MessageDigest md, Adler32 a32) {
+            super(out);
+            this.md = md;
+            this.a32 = a32;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int skip = (int) Math.max(0, Math.min(len, 32 - written));
+            if (skip < len) {
+                md.update(b, off + skip, len - skip);
+                a32.update(b, off + skip, len - skip);
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+    }
 }
@@ -22,7 +22,6 @@ import com.droid.dx.util.AnnotatedOutput;
 import com.droid.dx.util.Hex;
 
 import java.util.Collection;
-import java.util.TreeMap;
 
 /**
  * Field refs list section of a {@code .dex} file.
@@ -32,7 +31,7 @@ public final class FieldIdsSection extends MemberIdsSection {
      * {@code non-null;} map from field constants to {@link
      * FieldIdItem} instances
      */
-    private final TreeMap<CstFieldRef, FieldIdItem> fieldIds;
+    private final ConcurrentItemMap<CstFieldRef, FieldIdItem> fieldIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -42,7 +41,7 @@ public final class FieldIdsSection extends MemberIdsSection {
     public FieldIdsSection(DexFile file) {
         super("field_ids", file);
 
-        fieldIds = new TreeMap<CstFieldRef, FieldIdItem>();
+        fieldIds = new ConcurrentItemMap<CstFieldRef, FieldIdItem>();
     }
 
     /** {@inheritDoc} */
@@ -95,7 +94,7 @@ public final class FieldIdsSection extends MemberIdsSection {
      * @param field {@code non-null;} the reference to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized FieldIdItem intern(CstFieldRef field) {
+    public FieldIdItem intern(CstFieldRef field) {
         if (field == null) {
             throw new NullPointerException("field == null");
         }
@@ -106,7 +105,10 @@ public final class FieldIdsSection extends MemberIdsSection {
 
         if (result == null) {
             result = new FieldIdItem(field);
-            fieldIds.put(field, result);
+            FieldIdItem already = fieldIds.putIfAbsent(field, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
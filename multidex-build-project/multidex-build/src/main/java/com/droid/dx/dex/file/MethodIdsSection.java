@@ -22,7 +22,6 @@ import com.droid.dx.util.AnnotatedOutput;
 import com.droid.dx.util.Hex;
 
 import java.util.Collection;
-import java.util.TreeMap;
 
 /**
  * Method refs list section of a {@code .dex} file.
@@ -32,7 +31,7 @@ public final class MethodIdsSection extends MemberIdsSection {
      * {@code non-null;} map from method constants to {@link
      * com.droid.dx.dex.file.MethodIdItem} instances
      */
-    private final TreeMap<CstBaseMethodRef, com.droid.dx.dex.file.MethodIdItem> methodIds;
+    private final ConcurrentItemMap<CstBaseMethodRef, com.droid.dx.dex.file.MethodIdItem> methodIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -42,7 +41,7 @@ public final class MethodIdsSection extends MemberIdsSection {
     public MethodIdsSection(DexFile file) {
         super("method_ids", file);
 
-        methodIds = new TreeMap<CstBaseMethodRef, com.droid.dx.dex.file.MethodIdItem>();
+        methodIds = new ConcurrentItemMap<CstBaseMethodRef, com.droid.dx.dex.file.MethodIdItem>();
     }
 
     /** {@inheritDoc} */
@@ -95,7 +94,7 @@ public final class MethodIdsSection extends MemberIdsSection {
      * @param method {@code non-null;} the reference to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized com.droid.dx.dex.file.MethodIdItem intern(CstBaseMethodRef method) {
+    public com.droid.dx.dex.file.MethodIdItem intern(CstBaseMethodRef method) {
         if (method == null) {
             throw new NullPointerException("method == null");
         }
@@ -106,7 +105,10 @@ public final class MethodIdsSection extends MemberIdsSection {
 
         if (result == null) {
             result = new com.droid.dx.dex.file.MethodIdItem(method);
-            methodIds.put(method, result);
+            com.droid.dx.dex.file.MethodIdItem already = methodIds.putIfAbsent(method, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
@@ -21,7 +21,6 @@ import com.droid.dx.rop.type.Prototype;
 import com.droid.dx.util.AnnotatedOutput;
 import com.droid.dx.util.Hex;
 import java.util.Collection;
-import java.util.TreeMap;
 
 /**
  * Proto (method prototype) identifiers list section of a
@@ -31,7 +30,7 @@ public final class ProtoIdsSection extends UniformItemSection {
     /**
      * {@code non-null;} map from method prototypes to {@link com.droid.dx.dex.file.ProtoIdItem} instances
      */
-    private final TreeMap<Prototype, com.droid.dx.dex.file.ProtoIdItem> protoIds;
+    private final ConcurrentItemMap<Prototype, com.droid.dx.dex.file.ProtoIdItem> protoIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -41,7 +40,7 @@ public final class ProtoIdsSection extends UniformItemSection {
     public ProtoIdsSection(DexFile file) {
         super("proto_ids", file, 4);
 
-        protoIds = new TreeMap<Prototype, com.droid.dx.dex.file.ProtoIdItem>();
+        protoIds = new ConcurrentItemMap<Prototype, com.droid.dx.dex.file.ProtoIdItem>();
     }
 
     /** {@inheritDoc} */
@@ -86,7 +85,7 @@ public final class ProtoIdsSection extends UniformItemSection {
      * @param prototype {@code non-null;} the prototype to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized com.droid.dx.dex.file.ProtoIdItem intern(Prototype prototype) {
+    public com.droid.dx.dex.file.ProtoIdItem intern(Prototype prototype) {
         if (prototype == null) {
             throw new NullPointerException("prototype == null");
         }
@@ -97,7 +96,10 @@ public final class ProtoIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new com.droid.dx.dex.file.ProtoIdItem(prototype);
-            protoIds.put(prototype, result);
+            com.droid.dx.dex.file.ProtoIdItem already = protoIds.putIfAbsent(prototype, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
@@ -17,7 +17,6 @@
 package com.droid.dx.dex.file;
 
 import java.util.Collection;
-import java.util.TreeMap;
 
 /**
  * Strings list section of a {@code .dex} file.
@@ -28,7 +27,7 @@ public final class StringIdsSection
      * {@code non-null;} map from string constants to {@link
      * StringIdItem} instances
      */
-    private final TreeMap<com.droid.dx.rop.cst.CstString, StringIdItem> strings;
+    private final ConcurrentItemMap<com.droid.dx.rop.cst.CstString, StringIdItem> strings;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -38,7 +37,7 @@ public final class StringIdsSection
     public StringIdsSection(DexFile file) {
         super("string_ids", file, 4);
 
-        strings = new TreeMap<com.droid.dx.rop.cst.CstString, StringIdItem>();
+        strings = new ConcurrentItemMap<com.droid.dx.rop.cst.CstString, StringIdItem>();
     }
 
     /** {@inheritDoc} */
@@ -112,21 +111,19 @@ public final class StringIdsSection
      * @param string {@code non-null;} the string to intern
      * @return {@code non-null;} the interned string
      */
-    public synchronized StringIdItem intern(StringIdItem string) {
+    public StringIdItem intern(StringIdItem string) {
         if (string == null) {
             throw new NullPointerException("string == null");
         }
 
         throwIfPrepared();
 
-        com.droid.dx.rop.cst.CstString value = string.getValue();
-        StringIdItem already = strings.get(value);
+        StringIdItem already = strings.putIfAbsent(string.getValue(), string);
 
         if (already != null) {
             return already;
         }
 
-        strings.put(value, string);
         return string;
     }
 
@@ -135,7 +132,7 @@ public final class StringIdsSection
      *
      * @param nat {@code non-null;} the name-and-type
      */
-    public synchronized void intern(com.droid.dx.rop.cst.CstNat nat) {
+    public void intern(com.droid.dx.rop.cst.CstNat nat) {
         intern(nat.getName());
         intern(nat.getDescriptor());
     }
@@ -24,7 +24,6 @@ import com.droid.dx.util.AnnotatedOutput;
 import com.droid.dx.util.Hex;
 
 import java.util.Collection;
-import java.util.TreeMap;
 
 /**
  * Type identifiers list section of a {@code .dex} file.
@@ -33,7 +32,7 @@ public final class TypeIdsSection extends UniformItemSection {
     /**
      * {@code non-null;} map from types to {@link TypeIdItem} instances
      */
-    private final TreeMap<Type, TypeIdItem> typeIds;
+    private final ConcurrentItemMap<Type, TypeIdItem> typeIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -43,7 +42,7 @@ public final class TypeIdsSection extends UniformItemSection {
     public TypeIdsSection(DexFile file) {
         super("type_ids", file, 4);
 
-        typeIds = new TreeMap<Type, TypeIdItem>();
+        typeIds = new ConcurrentItemMap<Type, TypeIdItem>();
     }
 
     /** {@inheritDoc} */
@@ -103,7 +102,7 @@ public final class TypeIdsSection extends UniformItemSection {
      * @param type {@code non-null;} the type to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized TypeIdItem intern(Type type) {
+    public TypeIdItem intern(Type type) {
         if (type == null) {
             throw new NullPointerException("type == null");
         }
@@ -114,7 +113,10 @@ public final class TypeIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new TypeIdItem(new CstType(type));
-            typeIds.put(type, result);
+            TypeIdItem already = typeIds.putIfAbsent(type, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
@@ -126,7 +128,7 @@ public final class TypeIdsSection extends UniformItemSection {
      * @param type {@code non-null;} the type to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized TypeIdItem intern(CstType type) {
+    public TypeIdItem intern(CstType type) {
         if (type == null) {
             throw new NullPointerException("type == null");
         }
@@ -138,7 +140,10 @@ public final class TypeIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new TypeIdItem(type);
-            typeIds.put(typePerSe, result);
+            TypeIdItem already = typeIds.putIfAbsent(typePerSe, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
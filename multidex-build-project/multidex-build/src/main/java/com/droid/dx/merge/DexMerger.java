@@ -30,6 +30,11 @@ import com.droid.dex.TypeList;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Combine two dex files into one.
@@ -81,6 +86,12 @@ public final class DexMerger {
     /** minimum number of wasted bytes before it's worthwhile to compact the result */
     private int compactWasteThreshold = 1024 * 1024; // 1MiB
 
+    /** number of classes transformed ahead of the one being written, per thread */
+    private static final int CLASSES_AHEAD_PER_THREAD = 16;
+
+    /** number of threads transforming the code of the classes */
+    private int numThreads = 1;
+
     public DexMerger(com.droid.dex.Dex[] dexes, com.droid.dx.merge.CollisionPolicy collisionPolicy)
             throws IOException {
         this(dexes, collisionPolicy, new WriterSizes(dexes));
@@ -149,6 +160,15 @@ public final class DexMerger {
         this.compactWasteThreshold = compactWasteThreshold;
     }
 
+    /**
+     * Sets the number of threads transforming the code of the classes.
+     * With more than one, the instructions of the classes are transformed
+     * concurrently, ahead of writing them in order.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     private com.droid.dex.Dex mergeDexes() throws IOException {
         mergeStringIds();
         mergeTypeIds();
@@ -194,6 +214,7 @@ public final class DexMerger {
         if (wastedByteCount >  + compactWasteThreshold) {
             DexMerger compacter = new DexMerger(
                     new com.droid.dex.Dex[] {dexOut, new com.droid.dex.Dex(0)}, com.droid.dx.merge.CollisionPolicy.FAIL, compactedSizes);
+            compacter.setNumThreads(numThreads);
             result = compacter.mergeDexes();
             System.out.printf("Result compacted from %.1fKiB to %.1fKiB to save %.1fKiB%n",
                     dexOut.getLength() / 1024f,
@@ -534,9 +555,113 @@ public final class DexMerger {
         contentsOut.classDefs.off = idsDefsOut.getPosition();
         contentsOut.classDefs.size = types.length;
 
-        for (com.droid.dx.merge.SortableType type : types) {
+        if (numThreads <= 1) {
+            for (com.droid.dx.merge.SortableType type : types) {
+                com.droid.dex.Dex in = type.getDex();
+                transformClassDef(in, type.getClassDef(), type.getIndexMap(), null);
+            }
+            return;
+        }
+
+        /*
+         * Transforming the instructions is most of the work, and does not
+         * depend on where the code is written. The pool does it a bounded
+         * number of classes ahead of the one being written, the rest is
+         * written in order as above.
+         */
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            ArrayDeque<Future<TransformedClass>> ahead =
+                    new ArrayDeque<Future<TransformedClass>>();
+            int submitted = 0;
+            for (com.droid.dx.merge.SortableType type : types) {
+                while (submitted < types.length
+                        && ahead.size() < numThreads * CLASSES_AHEAD_PER_THREAD) {
+                    ahead.add(pool.submit(new ClassTransformer(types[submitted++])));
+                }
+                TransformedClass transformed = getTransformed(ahead.poll());
+                transformClassDef(type.getDex(), type.getClassDef(), type.getIndexMap(),
+                        transformed);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static TransformedClass getTransformed(Future<TransformedClass> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DexException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DexException(cause);
+        }
+    }
+
+    /**
+     * Code of a class, read and with its instructions transformed ahead of
+     * writing the class.
+     */
+    private static final class TransformedClass {
+        /** {@code non-null;} the class data */
+        private final ClassData classData;
+
+        /** {@code non-null;} code of the methods that have some, direct ones first */
+        private final List<Code> codes = new ArrayList<Code>();
+
+        /** {@code non-null;} transformed instructions of each of {@link #codes} */
+        private final List<short[]> instructions = new ArrayList<short[]>();
+
+        /** index of the next code to write */
+        private int next;
+
+        private TransformedClass(ClassData classData) {
+            this.classData = classData;
+        }
+    }
+
+    /**
+     * Task reading the code of a class and transforming its instructions.
+     */
+    private static final class ClassTransformer implements Callable<TransformedClass> {
+        private final com.droid.dx.merge.SortableType type;
+
+        private ClassTransformer(com.droid.dx.merge.SortableType type) {
+            this.type = type;
+        }
+
+        @Override
+        public TransformedClass call() {
+            ClassDef classDef = type.getClassDef();
+            if (classDef.getClassDataOffset() == 0) {
+                return null;
+            }
+
             com.droid.dex.Dex in = type.getDex();
-            transformClassDef(in, type.getClassDef(), type.getIndexMap());
+            InstructionTransformer transformer = new InstructionTransformer();
+            TransformedClass result = new TransformedClass(in.readClassData(classDef));
+            add(result, in, transformer, result.classData.getDirectMethods());
+            add(result, in, transformer, result.classData.getVirtualMethods());
+            return result;
+        }
+
+        private void add(TransformedClass result, com.droid.dex.Dex in,
+                InstructionTransformer transformer, ClassData.Method[] methods) {
+            for (ClassData.Method method : methods) {
+                if (method.getCodeOffset() != 0) {
+                    Code code = in.readCode(method);
+                    result.codes.add(code);
+                    result.instructions.add(
+                            transformer.transform(type.getIndexMap(), code.getInstructions()));
+                }
+            }
         }
     }
 
@@ -663,7 +788,8 @@ public final class DexMerger {
      * Reads a class_def_item beginning at {@code in} and writes the index and
      * data.
      */
-    private void transformClassDef(com.droid.dex.Dex in, ClassDef classDef, com.droid.dx.merge.IndexMap indexMap) {
+    private void transformClassDef(com.droid.dex.Dex in, ClassDef classDef, com.droid.dx.merge.IndexMap indexMap,
+                                   TransformedClass transformed) {
         idsDefsOut.assertFourByteAligned();
         idsDefsOut.writeInt(classDef.getTypeIndex());
         idsDefsOut.writeInt(classDef.getAccessFlags());
@@ -681,8 +807,9 @@ public final class DexMerger {
             idsDefsOut.writeInt(0);
         } else {
             idsDefsOut.writeInt(classDataOut.getPosition());
-            ClassData classData = in.readClassData(classDef);
-            transformClassData(in, classData, indexMap);
+            ClassData classData = transformed != null
+                    ? transformed.classData : in.readClassData(classDef);
+            transformClassData(in, classData, indexMap, transformed);
         }
 
         int staticValuesOff = classDef.getStaticValuesOffset();
@@ -770,7 +897,8 @@ public final class DexMerger {
         }
     }
 
-    private void transformClassData(com.droid.dex.Dex in, ClassData classData, com.droid.dx.merge.IndexMap indexMap) {
+    private void transformClassData(com.droid.dex.Dex in, ClassData classData, com.droid.dx.merge.IndexMap indexMap,
+                                    TransformedClass transformed) {
         contentsOut.classDatas.size++;
 
         ClassData.Field[] staticFields = classData.getStaticFields();
@@ -785,8 +913,8 @@ public final class DexMerger {
 
         transformFields(indexMap, staticFields);
         transformFields(indexMap, instanceFields);
-        transformMethods(in, indexMap, directMethods);
-        transformMethods(in, indexMap, virtualMethods);
+        transformMethods(in, indexMap, directMethods, transformed);
+        transformMethods(in, indexMap, virtualMethods, transformed);
     }
 
     private void transformFields(com.droid.dx.merge.IndexMap indexMap, ClassData.Field[] fields) {
@@ -799,7 +927,8 @@ public final class DexMerger {
         }
     }
 
-    private void transformMethods(com.droid.dex.Dex in, com.droid.dx.merge.IndexMap indexMap, ClassData.Method[] methods) {
+    private void transformMethods(com.droid.dex.Dex in, com.droid.dx.merge.IndexMap indexMap, ClassData.Method[] methods,
+                                  TransformedClass transformed) {
         int lastOutMethodIndex = 0;
         for (ClassData.Method method : methods) {
             int outMethodIndex = indexMap.adjustMethod(method.getMethodIndex());
@@ -813,12 +942,25 @@ public final class DexMerger {
             } else {
                 codeOut.alignToFourBytesWithZeroFill();
                 classDataOut.writeUleb128(codeOut.getPosition());
-                transformCode(in, in.readCode(method), indexMap);
+                if (transformed != null) {
+                    int next = transformed.next++;
+                    transformCode(in, transformed.codes.get(next), indexMap,
+                            transformed.instructions.get(next));
+                } else {
+                    transformCode(in, in.readCode(method), indexMap, null);
+                }
             }
         }
     }
 
-    private void transformCode(com.droid.dex.Dex in, Code code, com.droid.dx.merge.IndexMap indexMap) {
+    /**
+     * Writes a code item.
+     *
+     * @param newInstructions {@code null-ok;} the instructions already
+     * transformed, or {@code null} to transform them here
+     */
+    private void transformCode(com.droid.dex.Dex in, Code code, com.droid.dx.merge.IndexMap indexMap,
+                               short[] newInstructions) {
         contentsOut.codes.size++;
         codeOut.assertFourByteAligned();
 
@@ -838,8 +980,9 @@ public final class DexMerger {
             codeOut.writeInt(0);
         }
 
-        short[] instructions = code.getInstructions();
-        short[] newInstructions = instructionTransformer.transform(indexMap, instructions);
+        if (newInstructions == null) {
+            newInstructions = instructionTransformer.transform(indexMap, code.getInstructions());
+        }
         codeOut.writeInt(newInstructions.length);
         codeOut.write(newInstructions);
 
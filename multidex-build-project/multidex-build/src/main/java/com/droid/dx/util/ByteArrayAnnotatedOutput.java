@@ -77,6 +77,25 @@ public final class ByteArrayAnnotatedOutput
         this(data, false);
     }
 
+    /**
+     * Constructs an instance with a fixed maximum size, which writes to
+     * the given array from the given cursor on. Several instances may
+     * thus write to disjoint ranges of the same array. The constructed
+     * instance does not keep annotations by default.
+     *
+     * @param data {@code non-null;} data array to use for output
+     * @param cursor {@code >= 0;} the initial output cursor
+     */
+    public ByteArrayAnnotatedOutput(byte[] data, int cursor) {
+        this(data, false);
+
+        if ((cursor < 0) || (cursor > data.length)) {
+            throw new IllegalArgumentException("bogus cursor");
+        }
+
+        this.cursor = cursor;
+    }
+
     /**
      * Constructs a "stretchy" instance. The underlying array may be
      * reallocated. The constructed instance does not keep annotations
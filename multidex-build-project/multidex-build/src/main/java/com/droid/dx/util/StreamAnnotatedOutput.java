@@ -0,0 +1,263 @@
+package com.droid.dx.util;
+
+import com.droid.dex.Leb128;
+import com.droid.dex.util.ByteOutput;
+import com.droid.dex.util.ExceptionWithContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link AnnotatedOutput} which writes the data to an
+ * {@link OutputStream} through a buffer of fixed size, so the written data
+ * does not need to fit in memory. It does not keep annotations.
+ * <p>
+ * Failures of the stream are thrown as {@link ExceptionWithContext},
+ * with the {@link IOException} as cause, since {@link Output} methods do
+ * not declare any.
+ *
+ * <p><b>Note:</b> As per the {@link Output} interface, multi-byte
+ * writes all use little-endian order.</p>
+ */
+public final class StreamAnnotatedOutput implements AnnotatedOutput, ByteOutput {
+    /** default size of the buffer */
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** {@code non-null;} where the data is written to */
+    private final OutputStream out;
+
+    /** {@code non-null;} buffer of the data not yet written to the stream */
+    private final byte[] buffer;
+
+    /** {@code >= 0;} number of bytes in the buffer */
+    private int buffered;
+
+    /** {@code >= 0;} current output cursor */
+    private int cursor;
+
+    /**
+     * Constructs an instance with a buffer of default size.
+     *
+     * @param out {@code non-null;} where to write the data to
+     */
+    public StreamAnnotatedOutput(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs an instance.
+     *
+     * @param out {@code non-null;} where to write the data to
+     * @param bufferSize {@code >= 8;} size of the buffer
+     */
+    public StreamAnnotatedOutput(OutputStream out, int bufferSize) {
+        if (out == null) {
+            throw new NullPointerException("out == null");
+        }
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("bufferSize < 8");
+        }
+
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Writes the buffered data to the stream, and flushes it.
+     */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /** {@inheritDoc} */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /** {@inheritDoc} */
+    public void assertCursor(int expectedCursor) {
+        if (cursor != expectedCursor) {
+            throw new ExceptionWithContext("expected cursor " +
+                    expectedCursor + "; actual value: " + cursor);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void writeByte(int value) {
+        ensureRoom(1);
+        buffer[buffered++] = (byte) value;
+        cursor++;
+    }
+
+    /** {@inheritDoc} */
+    public void writeShort(int value) {
+        ensureRoom(2);
+        buffer[buffered] = (byte) value;
+        buffer[buffered + 1] = (byte) (value >> 8);
+        buffered += 2;
+        cursor += 2;
+    }
+
+    /** {@inheritDoc} */
+    public void writeInt(int value) {
+        ensureRoom(4);
+        buffer[buffered] = (byte) value;
+        buffer[buffered + 1] = (byte) (value >> 8);
+        buffer[buffered + 2] = (byte) (value >> 16);
+        buffer[buffered + 3] = (byte) (value >> 24);
+        buffered += 4;
+        cursor += 4;
+    }
+
+    /** {@inheritDoc} */
+    public void writeLong(long value) {
+        writeInt((int) value);
+        writeInt((int) (value >> 32));
+    }
+
+    /** {@inheritDoc} */
+    public int writeUleb128(int value) {
+        int cursorBefore = cursor;
+        Leb128.writeUnsignedLeb128(this, value);
+        return (cursor - cursorBefore);
+    }
+
+    /** {@inheritDoc} */
+    public int writeSleb128(int value) {
+        int cursorBefore = cursor;
+        Leb128.writeSignedLeb128(this, value);
+        return (cursor - cursorBefore);
+    }
+
+    /** {@inheritDoc} */
+    public void write(ByteArray bytes) {
+        int blen = bytes.size();
+        if (blen <= buffer.length) {
+            ensureRoom(blen);
+            bytes.getBytes(buffer, buffered);
+            buffered += blen;
+            cursor += blen;
+        } else {
+            byte[] copy = new byte[blen];
+            bytes.getBytes(copy, 0);
+            write(copy, 0, blen);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] bytes, int offset, int length) {
+        int bytesEnd = offset + length;
+
+        // twos-complement math trick: ((x < 0) || (y < 0)) <=> ((x|y) < 0)
+        if (((offset | length | bytesEnd) < 0) || (bytesEnd > bytes.length)) {
+            throw new IndexOutOfBoundsException("bytes.length " +
+                                                bytes.length + "; " +
+                                                offset + "..!" + bytesEnd);
+        }
+
+        if (length <= buffer.length - buffered) {
+            System.arraycopy(bytes, offset, buffer, buffered, length);
+            buffered += length;
+        } else {
+            // Too big for the room left, written to the stream directly.
+            drain();
+            try {
+                out.write(bytes, offset, length);
+            } catch (IOException ex) {
+                throw new ExceptionWithContext(ex);
+            }
+        }
+        cursor += length;
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /** {@inheritDoc} */
+    public void writeZeroes(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+
+        while (count > 0) {
+            if (buffered == buffer.length) {
+                drain();
+            }
+            int chunk = Math.min(count, buffer.length - buffered);
+            Arrays.fill(buffer, buffered, buffered + chunk, (byte) 0);
+            buffered += chunk;
+            cursor += chunk;
+            count -= chunk;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void alignTo(int alignment) {
+        int mask = alignment - 1;
+
+        if ((alignment < 0) || ((mask & alignment) != 0)) {
+            throw new IllegalArgumentException("bogus alignment");
+        }
+
+        int end = (cursor + mask) & ~mask;
+        writeZeroes(end - cursor);
+    }
+
+    /** {@inheritDoc} */
+    public boolean annotates() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isVerbose() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public void annotate(String msg) {
+        // This instance doesn't keep annotations.
+    }
+
+    /** {@inheritDoc} */
+    public void annotate(int amt, String msg) {
+        // This instance doesn't keep annotations.
+    }
+
+    /** {@inheritDoc} */
+    public void endAnnotation() {
+        // This instance doesn't keep annotations.
+    }
+
+    /** {@inheritDoc} */
+    public int getAnnotationWidth() {
+        return 0;
+    }
+
+    /**
+     * Makes room for {@code count} more bytes in the buffer.
+     */
+    private void ensureRoom(int count) {
+        if (buffered + count > buffer.length) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes the buffered data to the stream.
+     */
+    private void drain() {
+        if (buffered == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, buffered);
+        } catch (IOException ex) {
+            throw new ExceptionWithContext(ex);
+        }
+        buffered = 0;
+    }
+}
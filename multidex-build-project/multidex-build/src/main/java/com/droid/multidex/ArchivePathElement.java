@@ -51,6 +51,18 @@ class ArchivePathElement implements ClassPathElement {
         }
     }
 
+    /**
+     * Returns the CRC and size recorded in the central directory, the entry is not read.
+     */
+    @Override
+    public long getFingerprint(String path) throws IOException {
+        ZipEntry entry = archive.getEntry(path);
+        if (entry == null) {
+            throw new FileNotFoundException("File \"" + path + "\" not found");
+        }
+        return (entry.getSize() << 32) ^ entry.getCrc();
+    }
+
     @Override
     public void close() throws IOException {
         archive.close();
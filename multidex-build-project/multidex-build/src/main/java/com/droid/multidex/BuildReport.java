@@ -0,0 +1,128 @@
+package com.droid.multidex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall clock time of each phase of a main dex list computation, and counters describing it. The
+ * report is written as a flat JSON object so that build scripts can read it.
+ * <p>
+ * Phases are timed on the thread driving the computation, they do not overlap: starting a phase
+ * ends the previous one.
+ */
+final class BuildReport {
+
+    /** bumped when the meaning of an existing field changes */
+    private static final int FORMAT_VERSION = 1;
+
+    private final long start = System.nanoTime();
+    /** elapsed nanoseconds by phase name, in execution order */
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    /** {@code Number}, {@code Boolean} or {@code String} values by name */
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    private String currentPhase;
+    private long phaseStart;
+
+    /**
+     * Ends the current phase, if any, and starts timing {@code name}. Time spent again in a phase
+     * that already ran is added to it.
+     */
+    void startPhase(String name) {
+        endPhase();
+        currentPhase = name;
+        phaseStart = System.nanoTime();
+    }
+
+    void endPhase() {
+        if (currentPhase != null) {
+            long elapsed = System.nanoTime() - phaseStart;
+            Long previous = phases.get(currentPhase);
+            phases.put(currentPhase,
+                    Long.valueOf(previous == null ? elapsed : previous.longValue() + elapsed));
+            currentPhase = null;
+        }
+    }
+
+    void put(String name, long value) {
+        values.put(name, Long.valueOf(value));
+    }
+
+    void put(String name, boolean value) {
+        values.put(name, Boolean.valueOf(value));
+    }
+
+    /**
+     * Records the time spent in an activity that is not a phase, such as reading class files
+     * across all threads.
+     */
+    void putMillis(String name, long nanos) {
+        values.put(name, Long.valueOf(nanos / 1000000));
+    }
+
+    /**
+     * Records {@code count / total}, or nothing when {@code total} is {@code 0}.
+     */
+    void putRatio(String name, long count, long total) {
+        if (total != 0) {
+            values.put(name, Double.valueOf(Math.round(count * 10000.0 / total) / 10000.0));
+        }
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"formatVersion\": ").append(FORMAT_VERSION);
+        json.append(",\n  \"totalMillis\": ").append((System.nanoTime() - start) / 1000000);
+        json.append(",\n  \"phaseMillis\": {");
+        String separator = "\n    ";
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.append(separator);
+            appendString(json, phase.getKey());
+            json.append(": ").append(phase.getValue().longValue() / 1000000);
+            separator = ",\n    ";
+        }
+        json.append("\n  }");
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            json.append(",\n  ");
+            appendString(json, value.getKey());
+            json.append(": ");
+            if (value.getValue() instanceof String) {
+                appendString(json, (String) value.getValue());
+            } else {
+                json.append(value.getValue());
+            }
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    void write(File file) throws IOException {
+        endPhase();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(toJson());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void appendString(StringBuilder json, String string) {
+        json.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
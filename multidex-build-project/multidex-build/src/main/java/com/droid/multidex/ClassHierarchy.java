@@ -0,0 +1,96 @@
+package com.droid.multidex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memoized super class chains of the classes of a {@link Path}, and whether each class extends one
+ * of a set of component base types such as {@code android/app/Activity}.
+ * <p>
+ * The super class of a class and its base type bit are resolved once, later queries are a map
+ * lookup. This may be used by several threads at once.
+ */
+final class ClassHierarchy {
+
+    /** base types used when none are configured */
+    static final String[] DEFAULT_BASE_TYPES = { "android/app/Activity" };
+
+    /** recorded as the super class of classes without one or not in the path */
+    private static final String NO_SUPER = "";
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private final Path path;
+    private final String[] baseTypes;
+
+    /** super class binary name by class binary name */
+    private final ConcurrentMap<String, String> superNames =
+            new ConcurrentHashMap<String, String>();
+
+    /** whether a class extends one of {@link #baseTypes}, by class binary name */
+    private final ConcurrentMap<String, Boolean> subtypes =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param baseTypes {@code non-null;} binary names of the base types. A super class matches a
+     * base type when its name contains it, so that {@code android/app/Activity} also covers
+     * {@code android/app/ActivityGroup} as it always did.
+     */
+    ClassHierarchy(Path path, String[] baseTypes) {
+        this.path = path;
+        this.baseTypes = baseTypes.clone();
+    }
+
+    /**
+     * @return {@code null-ok;} binary name of the super class, {@code null} for classes without
+     * one and for classes that are not in the path
+     */
+    String getSuperName(String name) {
+        String superName = superNames.get(name);
+        if (superName == null) {
+            ClassSummary classFile = path.findSummary(name + CLASS_EXTENSION);
+            superName = classFile == null || classFile.getSuperName() == null
+                    ? NO_SUPER : classFile.getSuperName();
+            superNames.putIfAbsent(name, superName);
+        }
+        return superName == NO_SUPER ? null : superName;
+    }
+
+    /**
+     * Returns the binary names of the super classes of a class, nearest first. The chain stops at
+     * the first super class that is not in the path, which is still included.
+     */
+    List<String> getSuperClasses(String name) {
+        List<String> supers = new ArrayList<String>();
+        for (String superName = getSuperName(name); superName != null;
+                superName = getSuperName(superName)) {
+            supers.add(superName);
+        }
+        return supers;
+    }
+
+    /**
+     * Returns whether one of the super classes of a class matches a base type.
+     */
+    boolean isSubtypeOfBaseType(String name) {
+        Boolean result = subtypes.get(name);
+        if (result == null) {
+            String superName = getSuperName(name);
+            result = Boolean.valueOf(superName != null
+                    && (matchesBaseType(superName) || isSubtypeOfBaseType(superName)));
+            subtypes.putIfAbsent(name, result);
+        }
+        return result.booleanValue();
+    }
+
+    private boolean matchesBaseType(String name) {
+        for (String baseType : baseTypes) {
+            if (name.indexOf(baseType) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
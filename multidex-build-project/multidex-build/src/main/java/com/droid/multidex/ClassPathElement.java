@@ -34,6 +34,14 @@ interface ClassPathElement {
      */
     InputStream open(String path) throws IOException;
 
+    /**
+     * Returns a value that changes when the content of a "file" changes, used to detect the
+     * classes that changed since a previous run.
+     * @param path a '/' separated relative path to the file.
+     * @throws IOException if the path can not be found.
+     */
+    long getFingerprint(String path) throws IOException;
+
     void close() throws IOException;
 
     Iterable<String> list();
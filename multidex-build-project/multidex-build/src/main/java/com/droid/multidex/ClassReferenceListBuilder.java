@@ -16,25 +16,24 @@
 
 package com.droid.multidex;
 
-import com.droid.dx.cf.iface.FieldList;
-import com.droid.dx.cf.iface.MethodList;
-import com.droid.dx.rop.cst.Constant;
-import com.droid.dx.rop.cst.CstBaseMethodRef;
-import com.droid.dx.rop.cst.CstFieldRef;
-import com.droid.dx.rop.cst.CstType;
-import com.droid.dx.rop.type.Prototype;
-import com.droid.dx.rop.type.StdTypeList;
-import com.droid.dx.rop.type.TypeList;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tool to find direct class references to other classes.
@@ -42,12 +41,51 @@ import java.util.Set;
 public class ClassReferenceListBuilder {
     private static final String CLASS_EXTENSION = ".class";
 
+    /** number of classes handled by a {@link TraceTask} without splitting it further */
+    private static final int TRACE_BATCH_SIZE = 32;
+
     private final Path path;
-    private final Set<String> classNames = new HashSet<String>();
-    private final List<String> keepActivityList = new ArrayList<String>();
+    private final int numThreads;
+    private final Set<String> classNames;
+    private final ClassHierarchy hierarchy;
+    /** class file paths of the component roots and of their super classes */
+    private final Set<String> keepActivityList = new LinkedHashSet<String>();
+    private final Queue<String> worklist;
+    private final Set<String> annotatedClasses;
+    private final AtomicReference<IOException> traceFailure = new AtomicReference<IOException>();
+    private BuildReport report = new BuildReport();
 
     public ClassReferenceListBuilder(Path path) {
+        this(path, 1);
+    }
+
+    /**
+     * @param numThreads number of threads tracing references, {@code 1} traces on the calling
+     * thread
+     */
+    public ClassReferenceListBuilder(Path path, int numThreads) {
+        this(path, numThreads, ClassHierarchy.DEFAULT_BASE_TYPES);
+    }
+
+    /**
+     * @param numThreads number of threads tracing references, {@code 1} traces on the calling
+     * thread
+     * @param componentBaseTypes binary names of the component base types. Subclasses of those
+     * base types are only traced when they are roots, see {@link ClassHierarchy}.
+     */
+    public ClassReferenceListBuilder(Path path, int numThreads, String[] componentBaseTypes) {
         this.path = path;
+        this.numThreads = numThreads;
+        this.hierarchy = new ClassHierarchy(path, componentBaseTypes);
+        if (numThreads > 1) {
+            classNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            worklist = new ConcurrentLinkedQueue<String>();
+            annotatedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        } else {
+            classNames = new HashSet<String>();
+            worklist = new ArrayDeque<String>();
+            annotatedClasses = new HashSet<String>();
+        }
     }
 
     /**
@@ -61,6 +99,13 @@ public class ClassReferenceListBuilder {
         com.droid.multidex.MainDexListBuilder.main(args);
     }
 
+    /**
+     * Sets the report in which the tracing phases are timed.
+     */
+    void setReport(BuildReport report) {
+        this.report = report;
+    }
+
     /**
      * @param filterFile Archive containing the class files resulting of the tracing, typically
      *                   this is the result of running ProGuard.
@@ -70,6 +115,7 @@ public class ClassReferenceListBuilder {
         if (!inputFilter.exists())
             throw new FileNotFoundException("input filter file not found");
 
+        report.startPhase("trace");
         List<String> classJarofRoots = new ArrayList<String>();
         BufferedReader reader = new BufferedReader(new FileReader(inputFilter));
         String classLine;
@@ -81,204 +127,234 @@ public class ClassReferenceListBuilder {
         reader.close();
 
         for (String name : classJarofRoots) {
-            String className = name + CLASS_EXTENSION;
-            com.droid.dx.cf.direct.DirectClassFile classFile = null;
-            try {
-                classFile = path.getClass(className);
-            } catch (FileNotFoundException e) {
-            }
-            if (isActivity(classFile)) {
-                getSuper(classFile, keepActivityList);
-                keepActivityList.add(className);
+            if (hierarchy.isSubtypeOfBaseType(name)) {
+                for (String superName : hierarchy.getSuperClasses(name)) {
+                    keepActivityList.add(superName + CLASS_EXTENSION);
+                }
+                keepActivityList.add(name + CLASS_EXTENSION);
             }
         }
-        classNames.addAll(classJarofRoots);
+        for (String name : classJarofRoots) {
+            enqueue(name);
+        }
 
         for (String keep : keepActivityList) {
             System.out.println(com.droid.multidex.MainDexListBuilder.TAG + "keep activity in main dex [ " + keep + "]");
         }
 
-//        recursiveFind(classNames);
-        while (true) {
-            if (recursiveFind(classNames)) {
-//                List<String> removed = new ArrayList<String>();
-//                for (String name : classNames) {
-//                    String className = name + CLASS_EXTENSION;
-//                    DirectClassFile classFile;
-//                    try {
-//                        classFile = path.getClass(className);
-//                    } catch (FileNotFoundException e) {
-//                        continue;
-//                    }
-//                    if (isActivity(classFile) && !keepActivityList.contains(className)) {
-//                        removed.add(name);
-//                    }
-//                }
-//                classNames.removeAll(removed);
-                break;
-            }
-        }
+        traceReferences();
 
         /**
          * 查找匿名内部类
          */
-        Set<String> noNameClass = new HashSet<String>();
-        for (com.droid.multidex.ClassPathElement element : path.elements) {
-            for (String className : element.list()) {
-                if (className.indexOf(CLASS_EXTENSION) >= 0) {
-                    for (String classFind : classNames) {
-                        if (className.indexOf(classFind) >= 0) {
-//                            System.out.println(MainDexListBuilder.TAG + "iterator classFind " + classFind + ", class " + className);
-                            noNameClass.add(className.substring(0, className.indexOf(CLASS_EXTENSION)));
-                        }
-                    }
-                } else {
-                    System.out.println(com.droid.multidex.MainDexListBuilder.TAG + "iterator classFind not class " + className);
-                }
-            }
+        report.startPhase("nestedClasses");
+        NestedClassIndex nestedClassIndex = new NestedClassIndex(path);
+        List<String> noNameClass = new ArrayList<String>();
+        for (String classFind : classNames) {
+            noNameClass.addAll(nestedClassIndex.getNestedClasses(classFind));
+        }
+        for (String name : noNameClass) {
+            enqueue(name);
         }
-        classNames.addAll(noNameClass);
 
-        while (true) {
-            if (recursiveFind(classNames)) {
-                break;
-            }
+        traceReferences();
+        report.endPhase();
+    }
+
+    /**
+     * Adds {@code name} to the kept classes and schedules it for tracing if it was not already
+     * known.
+     */
+    private boolean enqueue(String name) {
+        if (classNames.add(name)) {
+            worklist.add(name);
+            return true;
         }
+        return false;
     }
 
-    private void getSuper(com.droid.dx.cf.direct.DirectClassFile classFile, List<String> supers) {
-        if (classFile == null)
+    /**
+     * Drains the worklist, tracing the dependencies of each newly kept class exactly once. This
+     * reaches the same fixpoint as repeatedly rescanning {@link #classNames} until it stops
+     * growing, but every class is only visited when it is first discovered.
+     * <p>
+     * With more than one thread the worklist is processed breadth first: all the classes queued so
+     * far are traced by a fork join pool, then the classes they discovered, until none is left.
+     */
+    private void traceReferences() throws IOException {
+        if (numThreads <= 1) {
+            String name;
+            while ((name = worklist.poll()) != null) {
+                traceClass(name);
+            }
             return;
+        }
 
-        CstType superClass = classFile.getSuperclass();
-        if (superClass != null) {
-            supers.add(superClass.getClassType().getClassName() + CLASS_EXTENSION);
-            com.droid.dx.cf.direct.DirectClassFile superClassFile;
-            try {
-                superClassFile = path.getClass(superClass.getClassType().getClassName() + CLASS_EXTENSION);
-            } catch (FileNotFoundException e) {
-                return;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            while (!worklist.isEmpty()) {
+                List<String> frontier = new ArrayList<String>();
+                String name;
+                while ((name = worklist.poll()) != null) {
+                    frontier.add(name);
+                }
+                invoke(pool, new TraceTask(frontier.toArray(new String[frontier.size()]),
+                        0, frontier.size(), false));
             }
-            getSuper(superClassFile, supers);
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private boolean isActivity(com.droid.dx.cf.direct.DirectClassFile classFile) {
-        if (classFile == null)
-            return false;
-
-        CstType superClass = classFile.getSuperclass();
-        if (superClass != null) {
-            if (superClass.getClassType().getClassName().indexOf("android/app/Activity") >= 0) {
-                return true;
-            } else {
-                com.droid.dx.cf.direct.DirectClassFile superClassFile;
-                try {
-                    superClassFile = path.getClass(superClass.getClassType().getClassName() + CLASS_EXTENSION);
-                } catch (FileNotFoundException e) {
-                    return false;
-                }
-                return isActivity(superClassFile);
-            }
+    private void invoke(ForkJoinPool pool, TraceTask task) throws IOException {
+        pool.invoke(task);
+        IOException failure = traceFailure.get();
+        if (failure != null) {
+            throw failure;
         }
-        return false;
     }
 
-    private boolean recursiveFind(Set<String> keepClass) throws IOException {
-        int size = classNames.size();
-        List<String> keepList = new ArrayList<String>(keepClass);
-        for (String name : keepList) {
-            String className = name + CLASS_EXTENSION;
-            com.droid.dx.cf.direct.DirectClassFile classFile;
-            try {
-                classFile = path.getClass(className);
-            } catch (FileNotFoundException e) {
-                throw new IOException("Class " + name +
-                        " is missing form original class path " + path, e);
+    /**
+     * Finds the classes of the path that have runtime visible annotations, on the class, a method
+     * or a field. Classes kept by {@link #addRoots} were already checked while being traced, so
+     * only the other ones are summarized here and every class file is read once per run.
+     */
+    public void addAnnotatedClasses() throws IOException {
+        Set<String> remaining = new LinkedHashSet<String>();
+        for (ClassPathElement element : path.getElements()) {
+            for (String name : element.list()) {
+                if (name.endsWith(CLASS_EXTENSION)) {
+                    String className = name.substring(0, name.length() - CLASS_EXTENSION.length());
+                    if (!classNames.contains(className)) {
+                        remaining.add(className);
+                    }
+                }
             }
-//            if (isActivity(classFile)) {
-//                keepActivityList.add(className);
-//            }
+        }
 
-            if (isActivity(classFile) && !keepActivityList.contains(className)) {
-//                System.out.println("don't keep activity " + className);
-                continue;
+        if (numThreads <= 1) {
+            for (String name : remaining) {
+                checkAnnotated(name);
             }
-            addDependencies(classFile);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            invoke(pool, new TraceTask(remaining.toArray(new String[remaining.size()]),
+                    0, remaining.size(), true));
+        } finally {
+            pool.shutdown();
         }
-        return size == classNames.size();
     }
 
-    Set<String> getClassNames() {
-        return classNames;
+    private void checkAnnotated(String name) throws IOException {
+        ClassSummary classFile;
+        try {
+            classFile = path.getSummary(name + CLASS_EXTENSION);
+        } catch (FileNotFoundException e) {
+            throw new IOException("Class " + name + " listed but not found in " + path, e);
+        }
+        if (classFile.isAnnotated()) {
+            annotatedClasses.add(name);
+        }
     }
 
-    private void addDependencies(com.droid.dx.cf.direct.DirectClassFile classFile) {
-        for (Constant constant : classFile.getConstantPool().getEntries()) {
-            if (constant instanceof CstType) {
-                checkDescriptor(((CstType) constant).getClassType().getDescriptor());
-            } else if (constant instanceof CstFieldRef) {
-                checkDescriptor(((CstFieldRef) constant).getType().getDescriptor());
-            } else if (constant instanceof CstBaseMethodRef) {
-                checkPrototype(((CstBaseMethodRef) constant).getPrototype());
-            }
+    private void traceClass(String name) throws IOException {
+        String className = name + CLASS_EXTENSION;
+        ClassSummary classFile;
+        try {
+            classFile = path.getSummary(className);
+        } catch (FileNotFoundException e) {
+            throw new IOException("Class " + name +
+                    " is missing form original class path " + path, e);
         }
-
-        FieldList fields = classFile.getFields();
-        int nbField = fields.size();
-        for (int i = 0; i < nbField; i++) {
-            checkDescriptor(fields.get(i).getDescriptor().getString());
+        if (classFile.isAnnotated()) {
+            annotatedClasses.add(name);
         }
 
-        MethodList methods = classFile.getMethods();
-        int nbMethods = methods.size();
-        for (int i = 0; i < nbMethods; i++) {
-            checkPrototype(Prototype.intern(methods.get(i).getDescriptor().getString()));
+        if (hierarchy.isSubtypeOfBaseType(name) && !keepActivityList.contains(className)) {
+            return;
         }
+        addDependencies(classFile);
     }
 
-    private void checkPrototype(Prototype proto) {
-        checkDescriptor(proto.getReturnType().getDescriptor());
-        StdTypeList args = proto.getParameterTypes();
-        for (int i = 0; i < args.size(); i++) {
-            checkDescriptor(args.get(i).getDescriptor());
+    /**
+     * Traces a slice of the current breadth first frontier, or only checks a slice of the
+     * remaining classes for annotations.
+     */
+    private class TraceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+        private final int start;
+        private final int end;
+        private final boolean annotationsOnly;
+
+        TraceTask(String[] names, int start, int end, boolean annotationsOnly) {
+            this.names = names;
+            this.start = start;
+            this.end = end;
+            this.annotationsOnly = annotationsOnly;
         }
-    }
 
-    private void checkDescriptor(String typeDescriptor) {
-        if (typeDescriptor.endsWith(";")) {
-            int lastBrace = typeDescriptor.lastIndexOf('[');
-            if (lastBrace < 0) {
-                addClassWithHierachy(typeDescriptor.substring(1, typeDescriptor.length() - 1));
-            } else {
-                assert typeDescriptor.length() > lastBrace + 3
-                        && typeDescriptor.charAt(lastBrace + 1) == 'L';
-                addClassWithHierachy(typeDescriptor.substring(lastBrace + 2,
-                        typeDescriptor.length() - 1));
+        @Override
+        protected void compute() {
+            if (end - start > TRACE_BATCH_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TraceTask(names, start, middle, annotationsOnly),
+                        new TraceTask(names, middle, end, annotationsOnly));
+                return;
+            }
+            for (int i = start; i < end && traceFailure.get() == null; i++) {
+                try {
+                    if (annotationsOnly) {
+                        checkAnnotated(names[i]);
+                    } else {
+                        traceClass(names[i]);
+                    }
+                } catch (IOException e) {
+                    traceFailure.compareAndSet(null, e);
+                }
             }
         }
     }
 
+    Set<String> getClassNames() {
+        return classNames;
+    }
+
+    /**
+     * Returns the annotated classes found so far, by binary name. This includes the traced ones,
+     * the other classes of the path are only there after {@link #addAnnotatedClasses}.
+     */
+    Set<String> getAnnotatedClasses() {
+        return annotatedClasses;
+    }
+
+    private void addDependencies(ClassSummary classFile) {
+        for (String reference : classFile.getReferences()) {
+            addClassWithHierachy(reference);
+        }
+    }
+
     private void addClassWithHierachy(String classBinaryName) {
         if (classNames.contains(classBinaryName)) {
             return;
         }
 
-        try {
-            com.droid.dx.cf.direct.DirectClassFile classFile = path.getClass(classBinaryName + CLASS_EXTENSION);
-            classNames.add(classBinaryName);
-            CstType superClass = classFile.getSuperclass();
-            if (superClass != null) {
-                addClassWithHierachy(superClass.getClassType().getClassName());
-            }
-
-            TypeList interfaceList = classFile.getInterfaces();
-            int interfaceNumber = interfaceList.size();
-            for (int i = 0; i < interfaceNumber; i++) {
-                addClassWithHierachy(interfaceList.getType(i).getClassName());
-            }
-        } catch (FileNotFoundException e) {
+        ClassSummary classFile = path.findSummary(classBinaryName + CLASS_EXTENSION);
+        if (classFile == null) {
             // Ignore: The referenced type is not in the path it must be part of the libraries.
+            return;
+        }
+        enqueue(classBinaryName);
+        String superClass = classFile.getSuperName();
+        if (superClass != null) {
+            addClassWithHierachy(superClass);
+        }
+
+        for (String interfaceName : classFile.getInterfaces()) {
+            addClassWithHierachy(interfaceName);
         }
     }
 
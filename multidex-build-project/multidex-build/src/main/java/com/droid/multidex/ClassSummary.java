@@ -0,0 +1,102 @@
+package com.droid.multidex;
+
+/**
+ * The facts about a class file that main dex tracing needs, extracted once so the class does not
+ * have to be parsed again.
+ *
+ * @see ClassSummaryReader
+ */
+final class ClassSummary {
+
+    /** flag set when the class itself has runtime visible annotations */
+    static final int ANNOTATED_CLASS = 1;
+
+    /** flag set when one of the methods or fields has runtime visible annotations */
+    static final int ANNOTATED_MEMBER = 2;
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final String[] references;
+    private final int annotationFlags;
+    private final int[] methodIds;
+    private final int[] fieldIds;
+    private final int[] typeIds;
+
+    ClassSummary(String name, String superName, String[] interfaces, String[] references,
+            int annotationFlags, int[] methodIds, int[] fieldIds, int[] typeIds) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.references = references;
+        this.annotationFlags = annotationFlags;
+        this.methodIds = methodIds;
+        this.fieldIds = fieldIds;
+        this.typeIds = typeIds;
+    }
+
+    /**
+     * @return {@code non-null;} binary name of the class, without the class extension
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return {@code null-ok;} binary name of the super class, {@code null} for
+     * {@code java/lang/Object}
+     */
+    String getSuperName() {
+        return superName;
+    }
+
+    /**
+     * @return {@code non-null;} binary names of the directly implemented interfaces
+     */
+    String[] getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * @return {@code non-null;} binary names of every class referenced from the constant pool or
+     * from a field or method descriptor, in first encountered order
+     */
+    String[] getReferences() {
+        return references;
+    }
+
+    int getAnnotationFlags() {
+        return annotationFlags;
+    }
+
+    /**
+     * @return whether the class, one of its methods or one of its fields has runtime visible
+     * annotations
+     */
+    boolean isAnnotated() {
+        return annotationFlags != 0;
+    }
+
+    /**
+     * @return {@code non-null;} sorted distinct hashes of the methods that the class declares or
+     * references, each one standing for a method id the class needs in a dex file
+     */
+    int[] getMethodIds() {
+        return methodIds;
+    }
+
+    /**
+     * @return {@code non-null;} sorted distinct hashes of the declared and referenced fields
+     */
+    int[] getFieldIds() {
+        return fieldIds;
+    }
+
+    /**
+     * @return {@code non-null;} sorted distinct hashes of the type descriptors used by the class,
+     * in its constant pool and in its field and method descriptors
+     */
+    int[] getTypeIds() {
+        return typeIds;
+    }
+}
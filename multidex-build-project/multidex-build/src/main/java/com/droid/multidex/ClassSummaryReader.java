@@ -0,0 +1,333 @@
+package com.droid.multidex;
+
+import com.droid.dx.cf.attrib.AttRuntimeVisibleAnnotations;
+import com.droid.dx.cf.cst.ConstantTags;
+import com.droid.dx.cf.iface.ParseException;
+import com.droid.dx.util.ByteArray;
+import com.droid.dx.util.Hex;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Reads a {@link ClassSummary} straight from the bytes of a class file.
+ * <p>
+ * Unlike {@link com.droid.dx.cf.direct.DirectClassFile}, no constant is built or interned: the
+ * constant pool is only scanned for entry offsets, and the only strings decoded are the class
+ * names and descriptors that end up in the summary. Code and every other attribute are skipped by
+ * length, except {@code RuntimeVisibleAnnotations} whose annotation count is read.
+ * <p>
+ * The method, field and type ids the class would need in a dex file are recorded as hashes of
+ * their owner, name and descriptor, so that the ids of a set of classes can be estimated by
+ * merging them.
+ */
+final class ClassSummaryReader {
+
+    private static final int CLASS_MAGIC = 0xcafebabe;
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private final ByteArray bytes;
+
+    /** offset of the tag of each constant pool entry, {@code 0} for unusable indices */
+    private final int[] offsets;
+
+    /** decoded {@code CONSTANT_Utf8} entries, filled on demand */
+    private final String[] utf8s;
+
+    /** offset of the first byte following the constant pool */
+    private int cursor;
+
+    private ClassSummaryReader(ByteArray bytes) {
+        if (bytes.size() < 10 || bytes.getInt(0) != CLASS_MAGIC) {
+            throw new ParseException("bad class file magic");
+        }
+        this.bytes = bytes;
+        int count = bytes.getUnsignedShort(8);
+        this.offsets = new int[count];
+        this.utf8s = new String[count];
+    }
+
+    /**
+     * Summarizes a class file.
+     *
+     * @param name {@code non-null;} binary name of the class, without the class extension
+     * @param classBytes {@code non-null;} content of the class file
+     */
+    static ClassSummary read(String name, byte[] classBytes) {
+        ClassSummaryReader reader = new ClassSummaryReader(new ByteArray(classBytes));
+        try {
+            return reader.summarize(name);
+        } catch (IllegalArgumentException e) {
+            // ByteArray reports reads past the end this way
+            throw new ParseException("truncated class file " + name, e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ParseException("bad constant pool index in " + name, e);
+        }
+    }
+
+    private ClassSummary summarize(String name) {
+        scanConstantPool();
+
+        int at = cursor + 2; // access_flags
+        String thisName = getClassName(bytes.getUnsignedShort(at));
+        at += 2;
+        int superIndex = bytes.getUnsignedShort(at);
+        at += 2;
+        String superName = superIndex == 0 ? null : getClassName(superIndex);
+
+        int interfaceNumber = bytes.getUnsignedShort(at);
+        at += 2;
+        String[] interfaces = interfaceNumber == 0 ? NO_NAMES : new String[interfaceNumber];
+        for (int i = 0; i < interfaceNumber; i++) {
+            interfaces[i] = getClassName(bytes.getUnsignedShort(at));
+            at += 2;
+        }
+
+        Set<String> references = new LinkedHashSet<String>();
+        IdSet methodIds = new IdSet();
+        IdSet fieldIds = new IdSet();
+        IdSet typeIds = new IdSet();
+        for (int i = 1; i < offsets.length; i++) {
+            int offset = offsets[i];
+            if (offset == 0) {
+                continue;
+            }
+            int tag = bytes.getUnsignedByte(offset);
+            switch (tag) {
+                case ConstantTags.CONSTANT_Class: {
+                    String className = getClassName(i);
+                    if (className.charAt(0) == '[') {
+                        addDescriptorTypes(className, references, typeIds);
+                    } else {
+                        references.add(className);
+                        typeIds.add(className.hashCode());
+                    }
+                    break;
+                }
+                case ConstantTags.CONSTANT_Fieldref:
+                case ConstantTags.CONSTANT_Methodref:
+                case ConstantTags.CONSTANT_InterfaceMethodref: {
+                    String owner = getClassName(bytes.getUnsignedShort(offset + 1));
+                    int nat = offsets[bytes.getUnsignedShort(offset + 3)];
+                    String memberName = getUtf8(bytes.getUnsignedShort(nat + 1));
+                    String descriptor = getUtf8(bytes.getUnsignedShort(nat + 3));
+                    addDescriptorTypes(descriptor, references, typeIds);
+                    (tag == ConstantTags.CONSTANT_Fieldref ? fieldIds : methodIds)
+                            .add(idHash(owner, memberName, descriptor));
+                    break;
+                }
+            }
+        }
+
+        int annotationFlags = 0;
+        for (int kind = 0; kind < 2; kind++) {
+            // fields, then methods
+            IdSet memberIds = kind == 0 ? fieldIds : methodIds;
+            int memberNumber = bytes.getUnsignedShort(at);
+            at += 2;
+            for (int i = 0; i < memberNumber; i++) {
+                String memberName = getUtf8(bytes.getUnsignedShort(at + 2));
+                String descriptor = getUtf8(bytes.getUnsignedShort(at + 4));
+                addDescriptorTypes(descriptor, references, typeIds);
+                memberIds.add(idHash(thisName, memberName, descriptor));
+                at += 6;
+                if (skipAttributes(at)) {
+                    annotationFlags |= ClassSummary.ANNOTATED_MEMBER;
+                }
+                at = cursor;
+            }
+        }
+        if (skipAttributes(at)) {
+            annotationFlags |= ClassSummary.ANNOTATED_CLASS;
+        }
+
+        return new ClassSummary(name, superName, interfaces,
+                references.toArray(new String[references.size()]), annotationFlags,
+                methodIds.toSortedArray(), fieldIds.toSortedArray(), typeIds.toSortedArray());
+    }
+
+    /**
+     * Records the offset of every constant pool entry, and sets {@link #cursor} to the end of the
+     * pool.
+     */
+    private void scanConstantPool() {
+        int at = 10;
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = at;
+            int tag = bytes.getUnsignedByte(at);
+            switch (tag) {
+                case ConstantTags.CONSTANT_Utf8:
+                    at += 3 + bytes.getUnsignedShort(at + 1);
+                    break;
+                case ConstantTags.CONSTANT_Integer:
+                case ConstantTags.CONSTANT_Float:
+                case ConstantTags.CONSTANT_Fieldref:
+                case ConstantTags.CONSTANT_Methodref:
+                case ConstantTags.CONSTANT_InterfaceMethodref:
+                case ConstantTags.CONSTANT_NameAndType:
+                case ConstantTags.CONSTANT_InvokeDynamic:
+                    at += 5;
+                    break;
+                case ConstantTags.CONSTANT_Long:
+                case ConstantTags.CONSTANT_Double:
+                    at += 9;
+                    i++; // category 2 constants use two slots
+                    break;
+                case ConstantTags.CONSTANT_Class:
+                case ConstantTags.CONSTANT_String:
+                case ConstantTags.CONSTANT_MethodType:
+                    at += 3;
+                    break;
+                case ConstantTags.CONSTANT_MethodHandle:
+                    at += 4;
+                    break;
+                default:
+                    throw new ParseException("unknown tag byte: " + Hex.u1(tag));
+            }
+        }
+        cursor = at;
+    }
+
+    /**
+     * Skips the attribute list starting at {@code at}, leaving {@link #cursor} after it.
+     *
+     * @return whether the list has a non empty {@code RuntimeVisibleAnnotations} attribute
+     */
+    private boolean skipAttributes(int at) {
+        boolean annotated = false;
+        int attributeNumber = bytes.getUnsignedShort(at);
+        at += 2;
+        for (int i = 0; i < attributeNumber; i++) {
+            int nameIndex = bytes.getUnsignedShort(at);
+            int length = bytes.getInt(at + 2);
+            at += 6;
+            if (!annotated && length >= 2
+                    && AttRuntimeVisibleAnnotations.ATTRIBUTE_NAME.equals(getUtf8(nameIndex))) {
+                annotated = bytes.getUnsignedShort(at) > 0;
+            }
+            at += length;
+        }
+        cursor = at;
+        return annotated;
+    }
+
+    private String getClassName(int index) {
+        int offset = offsets[index];
+        if (offset == 0 || bytes.getUnsignedByte(offset) != ConstantTags.CONSTANT_Class) {
+            throw new ParseException("bad class constant index " + Hex.u2(index));
+        }
+        return getUtf8(bytes.getUnsignedShort(offset + 1));
+    }
+
+    private String getUtf8(int index) {
+        String result = utf8s[index];
+        if (result == null) {
+            int offset = offsets[index];
+            if (offset == 0 || bytes.getUnsignedByte(offset) != ConstantTags.CONSTANT_Utf8) {
+                throw new ParseException("bad utf8 constant index " + Hex.u2(index));
+            }
+            result = decodeUtf8(offset + 3, bytes.getUnsignedShort(offset + 1));
+            utf8s[index] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the modified UTF-8 encoding used by class files.
+     */
+    private String decodeUtf8(int start, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int at = start;
+        int end = start + length;
+        while (at < end) {
+            int a = bytes.getUnsignedByte(at++);
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0 && at < end) {
+                int b = bytes.getUnsignedByte(at++);
+                chars[count++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0 && at + 1 < end) {
+                int b = bytes.getUnsignedByte(at++);
+                int c = bytes.getUnsignedByte(at++);
+                chars[count++] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+            } else {
+                throw new ParseException("bad utf8 constant at offset " + Hex.u4(start));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Adds the classes named by a field or method descriptor, array element classes included, and
+     * the types of the descriptor. Class types are hashed by binary name as for
+     * {@code CONSTANT_Class} entries, other types by descriptor.
+     */
+    private static void addDescriptorTypes(String descriptor, Set<String> references,
+            IdSet typeIds) {
+        int length = descriptor.length();
+        for (int i = 0; i < length; i++) {
+            char c = descriptor.charAt(i);
+            if (c == '(' || c == ')') {
+                continue;
+            }
+            int start = i;
+            while (c == '[' && i + 1 < length) {
+                c = descriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                int end = descriptor.indexOf(';', i);
+                if (end < 0) {
+                    throw new ParseException("bad descriptor: " + descriptor);
+                }
+                String className = descriptor.substring(i + 1, end);
+                references.add(className);
+                typeIds.add(start == i
+                        ? className.hashCode() : descriptor.substring(start, end + 1).hashCode());
+                i = end;
+            } else {
+                typeIds.add(start == i ? c : descriptor.substring(start, i + 1).hashCode());
+            }
+        }
+    }
+
+    /**
+     * Hashes a member reference, standing for its method or field id.
+     */
+    private static int idHash(String owner, String name, String descriptor) {
+        int hash = owner.hashCode();
+        hash = hash * 0x01000193 ^ name.hashCode();
+        return hash * 0x01000193 ^ descriptor.hashCode();
+    }
+
+    /**
+     * A growable list of id hashes.
+     */
+    private static final class IdSet {
+        private int[] ids = new int[16];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * Returns the distinct ids, sorted.
+         */
+        int[] toSortedArray() {
+            Arrays.sort(ids, 0, size);
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (count == 0 || ids[i] != ids[count - 1]) {
+                    ids[count++] = ids[i];
+                }
+            }
+            return Arrays.copyOf(ids, count);
+        }
+    }
+}
@@ -19,8 +19,10 @@ package com.droid.multidex;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.zip.CRC32;
 
 /**
  * A folder element.
@@ -39,6 +41,33 @@ class FolderPathElement implements ClassPathElement {
                 path.replace(SEPARATOR_CHAR, File.separatorChar)));
     }
 
+    /**
+     * Returns the size and CRC of the file content, as an archive records them. The file is read:
+     * modification times are too coarse on some file systems to tell a recompiled class of the
+     * same size from the previous one.
+     */
+    @Override
+    public long getFingerprint(String path) throws IOException {
+        File file = new File(baseFolder, path.replace(SEPARATOR_CHAR, File.separatorChar));
+        if (!file.isFile()) {
+            throw new FileNotFoundException("File \"" + path + "\" not found");
+        }
+        CRC32 crc = new CRC32();
+        long size = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int amt;
+            while ((amt = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, amt);
+                size += amt;
+            }
+        } finally {
+            in.close();
+        }
+        return (size << 32) ^ crc.getValue();
+    }
+
     @Override
     public void close() {
     }
@@ -50,12 +79,16 @@ class FolderPathElement implements ClassPathElement {
         return result;
     }
 
+    /**
+     * Adds the files of {@code folder} with paths relative to the base folder and without a
+     * leading separator, as archive entries are named.
+     */
     private void collect(File folder, String prefix, ArrayList<String> result) {
         for (File file : folder.listFiles()) {
             if (file.isDirectory()) {
-                collect(file, prefix + SEPARATOR_CHAR + file.getName(), result);
+                collect(file, prefix + file.getName() + SEPARATOR_CHAR, result);
             } else {
-                result.add(prefix + SEPARATOR_CHAR + file.getName());
+                result.add(prefix + file.getName());
             }
         }
     }
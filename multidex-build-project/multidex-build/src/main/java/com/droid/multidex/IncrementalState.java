@@ -0,0 +1,276 @@
+package com.droid.multidex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a main dex list computation leaves behind for the next one: the fingerprint of every class
+ * of the class path, the summaries, that is the dependency graph, of the classes that were parsed
+ * and the resulting list.
+ * <p>
+ * It is stored in a compact binary file. Every string is written once in a table and referenced by
+ * index, indices and counts are written as unsigned LEB128.
+ */
+final class IncrementalState {
+
+    private static final int MAGIC = 0x4d445853; // "MDXS"
+
+    private static final int VERSION = 2;
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    /** describes the inputs other than the classes, the list can only be reused if it matches */
+    private final String key;
+    /** fingerprint of every class of the path, by class file path */
+    private final Map<String, Long> fingerprints;
+    /** summaries by class file path */
+    private final Map<String, ClassSummary> summaries;
+    private final Set<String> mainDexList;
+
+    IncrementalState(String key, Map<String, Long> fingerprints,
+            Map<String, ClassSummary> summaries, Set<String> mainDexList) {
+        this.key = key;
+        this.fingerprints = fingerprints;
+        this.summaries = summaries;
+        this.mainDexList = mainDexList;
+    }
+
+    /**
+     * Returns whether the list of the previous run can be reused as is: the options and the filter
+     * did not change and neither did the set of classes or any of their contents.
+     */
+    boolean isUpToDate(String currentKey, Map<String, Long> currentFingerprints) {
+        return key.equals(currentKey) && fingerprints.equals(currentFingerprints);
+    }
+
+    /**
+     * Returns the summaries of the classes whose fingerprint did not change.
+     */
+    Map<String, ClassSummary> getUnchangedSummaries(Map<String, Long> currentFingerprints) {
+        Map<String, ClassSummary> result = new HashMap<String, ClassSummary>(summaries.size());
+        for (Map.Entry<String, ClassSummary> entry : summaries.entrySet()) {
+            Long previous = fingerprints.get(entry.getKey());
+            if (previous != null && previous.equals(currentFingerprints.get(entry.getKey()))) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    Set<String> getMainDexList() {
+        return mainDexList;
+    }
+
+    /**
+     * Reads a state written by {@link #write}.
+     *
+     * @return {@code null} if there is no state or if it was written by another version
+     */
+    static IncrementalState read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String key = in.readUTF();
+
+            int stringCount = readUnsigned(in);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            int fingerprintCount = readUnsigned(in);
+            Map<String, Long> fingerprints = new HashMap<String, Long>(fingerprintCount * 2);
+            for (int i = 0; i < fingerprintCount; i++) {
+                String path = strings[readUnsigned(in)];
+                fingerprints.put(path, Long.valueOf(in.readLong()));
+            }
+
+            int summaryCount = readUnsigned(in);
+            Map<String, ClassSummary> summaries =
+                    new HashMap<String, ClassSummary>(summaryCount * 2);
+            for (int i = 0; i < summaryCount; i++) {
+                String path = strings[readUnsigned(in)];
+                int superIndex = readUnsigned(in);
+                String superName = superIndex == 0 ? null : strings[superIndex - 1];
+                String[] interfaces = readNames(in, strings);
+                String[] references = readNames(in, strings);
+                int annotationFlags = in.readUnsignedByte();
+                int[] methodIds = readIds(in);
+                int[] fieldIds = readIds(in);
+                int[] typeIds = readIds(in);
+                summaries.put(path, new ClassSummary(
+                        path.substring(0, path.length() - CLASS_EXTENSION.length()),
+                        superName, interfaces, references, annotationFlags,
+                        methodIds, fieldIds, typeIds));
+            }
+
+            int listSize = readUnsigned(in);
+            Set<String> mainDexList = new LinkedHashSet<String>(listSize * 2);
+            for (int i = 0; i < listSize; i++) {
+                mainDexList.add(strings[readUnsigned(in)]);
+            }
+            return new IncrementalState(key, fingerprints, summaries, mainDexList);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted main dex state " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes this state, replacing {@code file} only once it is completely written.
+     */
+    void write(File file) throws IOException {
+        Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (String path : fingerprints.keySet()) {
+            intern(path, stringIndices, strings);
+        }
+        for (Map.Entry<String, ClassSummary> entry : summaries.entrySet()) {
+            ClassSummary summary = entry.getValue();
+            intern(entry.getKey(), stringIndices, strings);
+            if (summary.getSuperName() != null) {
+                intern(summary.getSuperName(), stringIndices, strings);
+            }
+            for (String name : summary.getInterfaces()) {
+                intern(name, stringIndices, strings);
+            }
+            for (String name : summary.getReferences()) {
+                intern(name, stringIndices, strings);
+            }
+        }
+        for (String name : mainDexList) {
+            intern(name, stringIndices, strings);
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+
+            writeUnsigned(out, strings.size());
+            for (String string : strings) {
+                out.writeUTF(string);
+            }
+
+            writeUnsigned(out, fingerprints.size());
+            for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+                writeUnsigned(out, stringIndices.get(entry.getKey()));
+                out.writeLong(entry.getValue());
+            }
+
+            writeUnsigned(out, summaries.size());
+            for (Map.Entry<String, ClassSummary> entry : summaries.entrySet()) {
+                ClassSummary summary = entry.getValue();
+                writeUnsigned(out, stringIndices.get(entry.getKey()));
+                writeUnsigned(out, summary.getSuperName() == null
+                        ? 0 : stringIndices.get(summary.getSuperName()) + 1);
+                writeNames(out, summary.getInterfaces(), stringIndices);
+                writeNames(out, summary.getReferences(), stringIndices);
+                out.writeByte(summary.getAnnotationFlags());
+                writeIds(out, summary.getMethodIds());
+                writeIds(out, summary.getFieldIds());
+                writeIds(out, summary.getTypeIds());
+            }
+
+            writeUnsigned(out, mainDexList.size());
+            for (String name : mainDexList) {
+                writeUnsigned(out, stringIndices.get(name));
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can not replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can not rename " + temp + " to " + file);
+        }
+    }
+
+    private static void intern(String string, Map<String, Integer> indices, List<String> strings) {
+        if (!indices.containsKey(string)) {
+            indices.put(string, Integer.valueOf(strings.size()));
+            strings.add(string);
+        }
+    }
+
+    private static String[] readNames(DataInput in, String[] strings) throws IOException {
+        int count = readUnsigned(in);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = strings[readUnsigned(in)];
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutput out, String[] names, Map<String, Integer> indices)
+            throws IOException {
+        writeUnsigned(out, names.length);
+        for (String name : names) {
+            writeUnsigned(out, indices.get(name));
+        }
+    }
+
+    private static int[] readIds(DataInput in) throws IOException {
+        int[] ids = new int[readUnsigned(in)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+        }
+        return ids;
+    }
+
+    private static void writeIds(DataOutput out, int[] ids) throws IOException {
+        writeUnsigned(out, ids.length);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+    }
+
+    private static int readUnsigned(DataInput in) throws IOException {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private static void writeUnsigned(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
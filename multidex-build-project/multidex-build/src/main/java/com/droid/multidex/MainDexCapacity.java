@@ -0,0 +1,172 @@
+package com.droid.multidex;
+
+/**
+ * Projects the number of method, field and type ids of a main dex holding a set of classes, from
+ * the id hashes of their {@link ClassSummary}. Ids shared by several classes are counted once, as
+ * in the dex file.
+ * <p>
+ * The projection is an estimate: dx may add a few methods and fields while translating, and
+ * {@code dexer.Main} rotates to a new dex as soon as the worst case of the next class, its whole
+ * constant pool, does not fit. A list should keep some headroom below the limit.
+ */
+final class MainDexCapacity {
+
+    /**
+     * What to do when the classes to keep exceed the budget.
+     */
+    enum Overflow {
+        /** only report the projection */
+        REPORT,
+        /** fail the computation */
+        FAIL,
+        /** drop optional classes until the list fits, fail if the required classes do not */
+        TRIM
+    }
+
+    private final int maxIds;
+    private final IdUnion methodIds = new IdUnion();
+    private final IdUnion fieldIds = new IdUnion();
+    private final IdUnion typeIds = new IdUnion();
+
+    /**
+     * @param maxIds maximum number of method ids, of field ids and of type ids
+     */
+    MainDexCapacity(int maxIds) {
+        this.maxIds = maxIds;
+    }
+
+    void add(ClassSummary classFile) {
+        methodIds.addAll(classFile.getMethodIds());
+        fieldIds.addAll(classFile.getFieldIds());
+        typeIds.addAll(classFile.getTypeIds());
+    }
+
+    /**
+     * Returns the number of ids that adding {@code classFile} would add, all kinds together.
+     */
+    int countNewIds(ClassSummary classFile) {
+        return methodIds.countMissing(classFile.getMethodIds())
+                + fieldIds.countMissing(classFile.getFieldIds())
+                + typeIds.countMissing(classFile.getTypeIds());
+    }
+
+    /**
+     * Returns whether the classes added so far and {@code classFile} stay within the budget.
+     */
+    boolean fits(ClassSummary classFile) {
+        return methodIds.size() + methodIds.countMissing(classFile.getMethodIds()) <= maxIds
+                && fieldIds.size() + fieldIds.countMissing(classFile.getFieldIds()) <= maxIds
+                && typeIds.size() + typeIds.countMissing(classFile.getTypeIds()) <= maxIds;
+    }
+
+    boolean isExceeded() {
+        return methodIds.size() > maxIds || fieldIds.size() > maxIds || typeIds.size() > maxIds;
+    }
+
+    int getMethodIdCount() {
+        return methodIds.size();
+    }
+
+    int getFieldIdCount() {
+        return fieldIds.size();
+    }
+
+    int getTypeIdCount() {
+        return typeIds.size();
+    }
+
+    @Override
+    public String toString() {
+        return "method ids " + methodIds.size() + ", field ids " + fieldIds.size()
+                + ", type ids " + typeIds.size() + " of " + maxIds;
+    }
+
+    /**
+     * An open addressing set of id hashes.
+     */
+    private static final class IdUnion {
+        /** slots, {@code 0} marks a free one so a zero id is tracked by {@link #hasZero} */
+        private int[] slots = new int[1024];
+        private int size;
+        private boolean hasZero;
+
+        int size() {
+            return size;
+        }
+
+        void addAll(int[] ids) {
+            for (int id : ids) {
+                add(id);
+            }
+        }
+
+        /**
+         * Returns how many of {@code ids}, which are distinct, are not in this set.
+         */
+        int countMissing(int[] ids) {
+            int missing = 0;
+            for (int id : ids) {
+                if (!contains(id)) {
+                    missing++;
+                }
+            }
+            return missing;
+        }
+
+        private boolean contains(int id) {
+            if (id == 0) {
+                return hasZero;
+            }
+            int mask = slots.length - 1;
+            for (int i = mix(id) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void add(int id) {
+            if (id == 0) {
+                if (!hasZero) {
+                    hasZero = true;
+                    size++;
+                }
+                return;
+            }
+            if ((size + 1) * 2 > slots.length) {
+                rehash();
+            }
+            if (insert(slots, id)) {
+                size++;
+            }
+        }
+
+        private void rehash() {
+            int[] grown = new int[slots.length * 2];
+            for (int id : slots) {
+                if (id != 0) {
+                    insert(grown, id);
+                }
+            }
+            slots = grown;
+        }
+
+        private static boolean insert(int[] slots, int id) {
+            int mask = slots.length - 1;
+            int i = mix(id) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == id) {
+                    return false;
+                }
+            }
+            slots[i] = id;
+            return true;
+        }
+
+        private static int mix(int id) {
+            int h = id * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -16,11 +16,26 @@
 
 package com.droid.multidex;
 
-import com.droid.dx.cf.iface.Attribute;
+import com.droid.dex.DexFormat;
+import com.droid.dx.command.UsageException;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /**
  * This is a command line tool used by mainDexClasses script to build a main dex classes list. First
@@ -40,6 +55,9 @@ public class MainDexListBuilder {
 
     private static final int STATUS_ERROR = 1;
 
+    /** appended to the output path to name the JSON performance report written next to it */
+    public static final String REPORT_SUFFIX = ".report.json";
+
     private static final String EOL = System.getProperty("line.separator");
 
     private static String USAGE_MESSAGE =
@@ -60,74 +78,467 @@ public class MainDexListBuilder {
     private static final String DISABLE_ANNOTATION_RESOLUTION_WORKAROUND =
             "--disable-annotation-resolution-workaround";
 
+    /**
+     * Maximum number of parsed class summaries kept in memory, see {@link Path#DEFAULT_CACHE_SIZE}.
+     * Lowering it bounds the memory used on very large class paths at the price of parsing evicted
+     * classes again.
+     */
+    private static final String CLASS_CACHE_SIZE = "--class-cache-size";
+
+    /**
+     * Number of threads used to trace class references. By default tracing runs on the calling
+     * thread.
+     */
+    private static final String NUM_THREADS = "--num-threads";
+
+    /**
+     * Read zip files of the class path through a memory mapping instead of {@code ZipFile}
+     * streams, see {@link MappedArchivePathElement}.
+     */
+    private static final String MAP_ARCHIVES = "--map-archives";
+
+    /**
+     * File in which the dependency graph and class fingerprints are kept between runs. When it is
+     * given, classes that did not change are not parsed again, and the previous list is reused as
+     * is when nothing changed at all.
+     */
+    private static final String INCREMENTAL_STATE = "--incremental-state";
+
+    /**
+     * Comma separated binary names of the component base types, {@code android/app/Activity} by
+     * default. A root extending one of them also keeps its super classes, and a class extending
+     * one of them is only traced if it is a root.
+     */
+    private static final String COMPONENT_BASE_TYPES = "--component-base-types";
+
+    /**
+     * Maximum number of method ids, of field ids and of type ids in the main dex, the dex format
+     * limit by default. See {@link MainDexCapacity}.
+     */
+    private static final String MAIN_DEX_MAX_IDS = "--main-dex-max-ids";
+
+    /**
+     * What to do when the projected main dex exceeds {@link #MAIN_DEX_MAX_IDS}: {@code report}, the
+     * default, {@code fail} or {@code trim}. Trimming drops classes kept only for their
+     * annotations, those adding the most ids first.
+     */
+    private static final String MAIN_DEX_OVERFLOW = "--main-dex-overflow";
+
+    /**
+     * File describing several main dex lists to compute at once, replacing the three usual
+     * arguments. Each line holds the class path, the filter file, the output file, optionally an
+     * incremental state file and optionally {@code true} or {@code false}, whether classes with
+     * runtime visible annotations are kept for that list, separated by tabs. Classes that are
+     * identical in several class paths are parsed once, and {@link #NUM_THREADS} lists are
+     * computed concurrently.
+     */
+    private static final String BATCH = "--batch";
+
+    /**
+     * Options of a main dex list computation.
+     */
+    static class Arguments implements Cloneable {
+        /** whether classes with runtime visible annotations are kept */
+        boolean keepAnnotated = true;
+
+        /** maximum number of class summaries cached while tracing */
+        int cacheSize = Path.DEFAULT_CACHE_SIZE;
+
+        /** number of threads tracing references */
+        int numThreads = 1;
+
+        /** whether zip files are memory mapped */
+        boolean mapArchives = false;
+
+        /** {@code null-ok;} file keeping the state of the previous run */
+        File incrementalState = null;
+
+        /** binary names of the component base types, see {@link ClassHierarchy} */
+        String[] componentBaseTypes = ClassHierarchy.DEFAULT_BASE_TYPES;
+
+        /** maximum number of ids of each kind in the main dex */
+        int maxIds = DexFormat.MAX_MEMBER_IDX + 1;
+
+        MainDexCapacity.Overflow overflow = MainDexCapacity.Overflow.REPORT;
+
+        /** {@code null-ok;} summaries shared with other computations */
+        SharedSummaryIndex sharedIndex = null;
+
+        Arguments copy() {
+            try {
+                return (Arguments) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
     private Set<String> filesToKeep = new HashSet<String>();
 
+    private final BuildReport report = new BuildReport();
+
     private static String outputPath;
     private static String inputFilter;
 
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (UsageException e) {
+            printUsage();
+            System.exit(STATUS_ERROR);
+        } catch (IOException e) {
+            System.err.println(TAG + "A fatal error occured: " + e.getMessage());
+            System.exit(STATUS_ERROR);
+        }
+    }
+
+    /**
+     * Computes the main dex lists the arguments describe, as {@link #main} does, but reports
+     * errors by throwing instead of exiting, so that it can run in a JVM that outlives it.
+     *
+     * @throws UsageException if the arguments are invalid, the reason is printed first
+     * @throws IOException if a list can not be computed or written
+     */
+    public static void run(String[] args) throws IOException {
 
         int argIndex = 0;
-        boolean keepAnnotated = true;
-        while (argIndex < args.length - 3) {
+        Arguments arguments = new Arguments();
+        String batchFile = null;
+        while (argIndex < args.length && args[argIndex].startsWith("--")) {
             if (args[argIndex].equals(DISABLE_ANNOTATION_RESOLUTION_WORKAROUND)) {
-                keepAnnotated = false;
+                arguments.keepAnnotated = false;
+            } else if (args[argIndex].startsWith(CLASS_CACHE_SIZE + "=")) {
+                arguments.cacheSize = parsePositiveInt(args[argIndex]);
+            } else if (args[argIndex].startsWith(NUM_THREADS + "=")) {
+                arguments.numThreads = parsePositiveInt(args[argIndex]);
+            } else if (args[argIndex].equals(MAP_ARCHIVES)) {
+                arguments.mapArchives = true;
+            } else if (args[argIndex].startsWith(INCREMENTAL_STATE + "=")) {
+                arguments.incrementalState = new File(
+                        args[argIndex].substring(INCREMENTAL_STATE.length() + 1));
+            } else if (args[argIndex].startsWith(MAIN_DEX_MAX_IDS + "=")) {
+                arguments.maxIds = parsePositiveInt(args[argIndex]);
+            } else if (args[argIndex].startsWith(MAIN_DEX_OVERFLOW + "=")) {
+                arguments.overflow = parseOverflow(args[argIndex]);
+            } else if (args[argIndex].startsWith(COMPONENT_BASE_TYPES + "=")) {
+                arguments.componentBaseTypes = parseNames(args[argIndex]);
+            } else if (args[argIndex].startsWith(BATCH + "=")) {
+                batchFile = args[argIndex].substring(BATCH.length() + 1);
             } else {
                 System.err.println("Invalid option " + args[argIndex]);
-                printUsage();
-                System.exit(STATUS_ERROR);
+                throw new UsageException();
             }
             argIndex++;
         }
+        if (batchFile != null) {
+            if (args.length != argIndex || arguments.incrementalState != null) {
+                System.err.println(BATCH + " takes the place of the other arguments and of "
+                        + INCREMENTAL_STATE);
+                throw new UsageException();
+            }
+            runBatch(batchFile, arguments);
+            return;
+        }
         if (args.length - argIndex != 3) {
-            printUsage();
-            System.exit(STATUS_ERROR);
+            throw new UsageException();
         }
 
-        try {
-            inputFilter = args[argIndex + 1];
-            outputPath = args[argIndex + 2];
-            MainDexListBuilder builder = new MainDexListBuilder(keepAnnotated,
-                    args[argIndex]);
-            System.out.println("----------------" + TAG + "generate main dex internal begin----------------------");
-            System.out.println("--" + TAG + "generate main dex internal classesJar " + args[argIndex] + " -------");
-            System.out.println("--" + TAG + "generate main dex internal inputFilter " + inputFilter + " -------");
-            System.out.println("--" + TAG + "generate main dex internal outputPath " + outputPath + " -------");
-            System.out.println("----------------" + TAG + "generate main dex internal end-------------------------");
-            Set<String> toKeep = builder.getMainDexList();
-            printList(toKeep);
-        } catch (IOException e) {
-            System.err.println(TAG + "A fatal error occured: " + e.getMessage());
-            System.exit(STATUS_ERROR);
-            return;
-        }
+        inputFilter = args[argIndex + 1];
+        outputPath = args[argIndex + 2];
+        MainDexListBuilder builder =
+                new MainDexListBuilder(args[argIndex], inputFilter, arguments);
+        System.out.println("----------------" + TAG + "generate main dex internal begin----------------------");
+        System.out.println("--" + TAG + "generate main dex internal classesJar " + args[argIndex] + " -------");
+        System.out.println("--" + TAG + "generate main dex internal inputFilter " + inputFilter + " -------");
+        System.out.println("--" + TAG + "generate main dex internal outputPath " + outputPath + " -------");
+        System.out.println("----------------" + TAG + "generate main dex internal end-------------------------");
+        Set<String> toKeep = builder.getMainDexList();
+        builder.report.startPhase("write");
+        printList(toKeep, outputPath);
+        builder.report.endPhase();
+        writeReport(builder.report, outputPath);
     }
 
     public MainDexListBuilder(boolean keepAnnotated, String pathString)
             throws IOException {
+        this(pathString, inputFilter, withKeepAnnotated(keepAnnotated));
+    }
+
+    /**
+     * @param filterPath file listing the roots, one class binary name per line
+     */
+    MainDexListBuilder(String pathString, String filterPath, Arguments arguments)
+            throws IOException {
         Path path = null;
         try {
-            path = new Path(pathString);
+            report.put("numThreads", arguments.numThreads);
+            report.startPhase("open");
+            path = new Path(pathString, arguments.cacheSize, arguments.mapArchives);
+            if (arguments.sharedIndex != null) {
+                path.setSharedIndex(arguments.sharedIndex);
+            }
 
-            ClassReferenceListBuilder mainListBuilder = new ClassReferenceListBuilder(path);
-            mainListBuilder.addRoots(inputFilter);
-            for (String className : mainListBuilder.getClassNames()) {
-                filesToKeep.add(className + CLASS_EXTENSION);
+            String stateKey = null;
+            Map<String, Long> fingerprints = null;
+            if (arguments.incrementalState != null) {
+                report.startPhase("fingerprints");
+                stateKey = getStateKey(pathString, filterPath, arguments);
+                fingerprints = path.getFingerprints();
+                IncrementalState previous = readState(arguments.incrementalState);
+                boolean upToDate = previous != null && previous.isUpToDate(stateKey, fingerprints);
+                report.put("upToDate", upToDate);
+                if (upToDate) {
+                    System.out.println(TAG + "main dex list is up to date");
+                    filesToKeep.addAll(previous.getMainDexList());
+                    return;
+                } else if (previous != null) {
+                    Map<String, ClassSummary> unchanged =
+                            previous.getUnchangedSummaries(fingerprints);
+                    System.out.println(TAG + "reusing " + unchanged.size()
+                            + " unchanged classes");
+                    path.preload(unchanged);
+                }
             }
-            if (keepAnnotated) {
-                keepAnnotated(path);
+
+            ClassReferenceListBuilder mainListBuilder =
+                    new ClassReferenceListBuilder(path, arguments.numThreads,
+                            arguments.componentBaseTypes);
+            mainListBuilder.setReport(report);
+            mainListBuilder.addRoots(filterPath);
+            report.put("tracedClasses", mainListBuilder.getClassNames().size());
+            List<String> optional = new ArrayList<String>();
+            if (arguments.keepAnnotated) {
+                // Keep classes annotated with runtime annotations.
+                report.startPhase("annotations");
+                mainListBuilder.addAnnotatedClasses();
+                report.put("annotatedClasses", mainListBuilder.getAnnotatedClasses().size());
+                for (String className : mainListBuilder.getAnnotatedClasses()) {
+                    if (!mainListBuilder.getClassNames().contains(className)) {
+                        optional.add(className);
+                    }
+                }
+            }
+            report.startPhase("capacity");
+            keepWithinCapacity(path, mainListBuilder.getClassNames(), optional, arguments);
+            System.out.println(TAG + "class cache hits " + path.getCacheHits()
+                    + " misses " + path.getCacheMisses());
+
+            if (arguments.incrementalState != null) {
+                report.startPhase("saveState");
+                new IncrementalState(stateKey, fingerprints, path.getCachedSummaries(),
+                        new TreeSet<String>(filesToKeep)).write(arguments.incrementalState);
             }
         } finally {
+            report.endPhase();
+            report.put("keptClasses", filesToKeep.size());
+            if (path != null) {
+                path.addCounters(report);
+                for (ClassPathElement element : path.elements) {
+                    try {
+                        element.close();
+                    } catch (IOException e) {
+                        // keep going, lets do our best.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the required classes and the optional ones, checking the projected size of the main
+     * dex against the budget of {@code arguments}.
+     *
+     * @throws IOException if the budget is exceeded and {@link MainDexCapacity.Overflow#REPORT}
+     * was not requested
+     */
+    private void keepWithinCapacity(Path path, Set<String> required, List<String> optional,
+            Arguments arguments) throws IOException {
+        MainDexCapacity capacity = new MainDexCapacity(arguments.maxIds);
+        for (String className : required) {
+            capacity.add(path.getSummary(className + CLASS_EXTENSION));
+            filesToKeep.add(className + CLASS_EXTENSION);
+        }
+
+        int trimmed = 0;
+        if (arguments.overflow == MainDexCapacity.Overflow.TRIM) {
+            // Cheapest classes first, so that as many as possible are kept.
+            final Map<String, Integer> costs = new HashMap<String, Integer>();
+            for (String className : optional) {
+                costs.put(className, Integer.valueOf(
+                        capacity.countNewIds(path.getSummary(className + CLASS_EXTENSION))));
+            }
+            Collections.sort(optional, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    int result = costs.get(a).compareTo(costs.get(b));
+                    return result != 0 ? result : a.compareTo(b);
+                }
+            });
+        }
+        for (String className : optional) {
+            ClassSummary classFile = path.getSummary(className + CLASS_EXTENSION);
+            if (arguments.overflow == MainDexCapacity.Overflow.TRIM && !capacity.fits(classFile)) {
+                trimmed++;
+                continue;
+            }
+            capacity.add(classFile);
+            filesToKeep.add(className + CLASS_EXTENSION);
+        }
+
+        report.put("projectedMethodIds", capacity.getMethodIdCount());
+        report.put("projectedFieldIds", capacity.getFieldIdCount());
+        report.put("projectedTypeIds", capacity.getTypeIdCount());
+        report.put("trimmedClasses", trimmed);
+        System.out.println(TAG + "projected main dex " + capacity
+                + (trimmed == 0 ? "" : ", " + trimmed + " annotated classes trimmed"));
+        if (capacity.isExceeded()) {
+            if (arguments.overflow == MainDexCapacity.Overflow.REPORT) {
+                System.out.println(TAG + "main dex capacity will be exceeded");
+            } else {
+                throw new IOException("main dex capacity exceeded, projected " + capacity);
+            }
+        }
+    }
+
+    /**
+     * Writes the performance report next to the output, failing to do so does not fail the build.
+     */
+    private static void writeReport(BuildReport report, String outputPath) {
+        File file = new File(outputPath + REPORT_SUFFIX);
+        try {
+            report.write(file);
+            System.out.println(TAG + "report written to " + file);
+        } catch (IOException e) {
+            System.out.println(TAG + "can not write report " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the lists described by a {@link #BATCH} file, sharing one summary index.
+     */
+    private static void runBatch(String batchFile, final Arguments arguments) throws IOException {
+        final List<String[]> variants = readBatch(batchFile);
+        if (variants.isEmpty()) {
+            throw new IOException("No main dex list described in " + batchFile);
         }
-        if (path != null) {
-            for (ClassPathElement element : path.elements) {
+        final SharedSummaryIndex sharedIndex = new SharedSummaryIndex();
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(arguments.numThreads, variants.size()));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(variants.size());
+            for (final String[] variant : variants) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        runVariant(variant, arguments, sharedIndex);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
                 try {
-                    element.close();
-                } catch (IOException e) {
-                    // keep going, lets do our best.
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw new IOException(variants.get(i)[2] + ": " + cause.getMessage(), cause);
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
                 }
             }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(TAG + "computed " + variants.size() + " main dex lists from "
+                + sharedIndex.size() + " distinct classes");
+    }
+
+    private static void runVariant(String[] variant, Arguments arguments,
+            SharedSummaryIndex sharedIndex) throws IOException {
+        Arguments variantArguments = arguments.copy();
+        // Lists are computed concurrently, each one on a single thread.
+        variantArguments.numThreads = 1;
+        variantArguments.sharedIndex = sharedIndex;
+        variantArguments.incrementalState = variant.length > 3 ? new File(variant[3]) : null;
+        if (variant.length > 4) {
+            variantArguments.keepAnnotated = Boolean.parseBoolean(variant[4]);
+        }
+        System.out.println("--" + TAG + "generate main dex internal classesJar " + variant[0]
+                + " outputPath " + variant[2] + " -------");
+        MainDexListBuilder builder = new MainDexListBuilder(variant[0], variant[1],
+                variantArguments);
+        builder.report.startPhase("write");
+        printList(builder.getMainDexList(), variant[2]);
+        builder.report.endPhase();
+        writeReport(builder.report, variant[2]);
+    }
+
+    private static List<String[]> readBatch(String batchFile) throws IOException {
+        List<String[]> variants = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(batchFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] variant = line.split("\t");
+                if (variant.length < 3 || variant.length > 5 || (variant.length == 5
+                        && !variant[4].equals("true") && !variant[4].equals("false"))) {
+                    throw new IOException("Invalid line in " + batchFile + ": " + line);
+                }
+                variants.add(variant);
+            }
+        } finally {
+            reader.close();
+        }
+        return variants;
+    }
+
+    /**
+     * Reads the state of the previous run, a state that can not be read is ignored and the list is
+     * computed from scratch.
+     */
+    private static IncrementalState readState(File file) {
+        try {
+            return IncrementalState.read(file);
+        } catch (IOException e) {
+            System.out.println(TAG + "ignoring main dex state " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Describes the inputs that the list depends on, besides the classes themselves.
+     */
+    private static String getStateKey(String pathString, String filterPath, Arguments arguments)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(filterPath);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int amt;
+            while ((amt = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, amt);
+            }
+        } finally {
+            in.close();
         }
+        return pathString + EOL + arguments.keepAnnotated + EOL
+                + Arrays.toString(arguments.componentBaseTypes) + EOL
+                + arguments.maxIds + EOL + arguments.overflow + EOL
+                + Long.toHexString(crc.getValue());
+    }
+
+    private static Arguments withKeepAnnotated(boolean keepAnnotated) {
+        Arguments arguments = new Arguments();
+        arguments.keepAnnotated = keepAnnotated;
+        return arguments;
     }
 
     /**
@@ -137,17 +548,61 @@ public class MainDexListBuilder {
         return filesToKeep;
     }
 
+    private static int parsePositiveInt(String option) {
+        String value = option.substring(option.indexOf('=') + 1);
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("Invalid value for " + option);
+        throw new UsageException();
+    }
+
+    private static MainDexCapacity.Overflow parseOverflow(String option) {
+        String value = option.substring(option.indexOf('=') + 1);
+        for (MainDexCapacity.Overflow overflow : MainDexCapacity.Overflow.values()) {
+            if (overflow.name().equalsIgnoreCase(value)) {
+                return overflow;
+            }
+        }
+        System.err.println("Invalid value for " + option);
+        throw new UsageException();
+    }
+
+    private static String[] parseNames(String option) {
+        List<String> names = new ArrayList<String>();
+        for (String name : option.substring(option.indexOf('=') + 1).split(",")) {
+            name = name.trim().replace('.', '/');
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        if (names.isEmpty()) {
+            System.err.println("Invalid value for " + option);
+            throw new UsageException();
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
     private static void printUsage() {
         System.err.print(USAGE_MESSAGE);
     }
 
-    private static void printList(Set<String> fileNames) throws IOException {
+    /**
+     * Writes the list sorted, so that the output does not depend on the order in which classes
+     * were discovered.
+     */
+    private static void printList(Set<String> fileNames, String outputPath) throws IOException {
         File file = new File(outputPath);
         if (file.exists())
             file.delete();
         file.createNewFile();
         BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
-        for (String fileName : fileNames) {
+        for (String fileName : new TreeSet<String>(fileNames)) {
 //            System.out.println(fileName);
             bos.write((fileName + "\n").getBytes());
         }
@@ -155,42 +610,4 @@ public class MainDexListBuilder {
         bos.close();
         System.out.println(TAG + "keep file size " + fileNames.size());
     }
-
-    /**
-     * Keep classes annotated with runtime annotations.
-     */
-    private void keepAnnotated(Path path) throws FileNotFoundException {
-        for (ClassPathElement element : path.getElements()) {
-            forClazz:
-            for (String name : element.list()) {
-                if (name.endsWith(CLASS_EXTENSION)) {
-                    com.droid.dx.cf.direct.DirectClassFile clazz = path.getClass(name);
-                    if (hasRuntimeVisibleAnnotation(clazz)) {
-                        filesToKeep.add(name);
-                    } else {
-                        com.droid.dx.cf.iface.MethodList methods = clazz.getMethods();
-                        for (int i = 0; i < methods.size(); i++) {
-                            if (hasRuntimeVisibleAnnotation(methods.get(i))) {
-                                filesToKeep.add(name);
-                                continue forClazz;
-                            }
-                        }
-                        com.droid.dx.cf.iface.FieldList fields = clazz.getFields();
-                        for (int i = 0; i < fields.size(); i++) {
-                            if (hasRuntimeVisibleAnnotation(fields.get(i))) {
-                                filesToKeep.add(name);
-                                continue forClazz;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-    }
-
-    private boolean hasRuntimeVisibleAnnotation(com.droid.dx.cf.iface.HasAttribute element) {
-        Attribute att = element.getAttributes().findFirst(
-                com.droid.dx.cf.attrib.AttRuntimeVisibleAnnotations.ATTRIBUTE_NAME);
-        return (att != null && ((com.droid.dx.cf.attrib.AttRuntimeVisibleAnnotations) att).getAnnotations().size() > 0);
-    }
 }
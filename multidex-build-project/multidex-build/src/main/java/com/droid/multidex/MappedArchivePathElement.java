@@ -0,0 +1,324 @@
+package com.droid.multidex;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zip element read through a memory mapping of the whole archive. The central directory is
+ * parsed once into a hash index, stored entries are served as slices of the mapping and deflated
+ * entries are inflated from the mapping with per thread buffers, without going through
+ * {@link java.util.zip.ZipFile} streams.
+ * <p>
+ * Zip64 archives and archives bigger than 2GB are not supported, {@link #open(File)} reports
+ * them with a {@link ZipException} so that the caller can fall back to {@link ArchivePathElement}.
+ */
+class MappedArchivePathElement implements ClassPathElement {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Inflaters and compressed input buffers, reused by each reading thread. */
+    private static final ThreadLocal<InflateBuffers> INFLATE_BUFFERS =
+            new ThreadLocal<InflateBuffers>() {
+        @Override
+        protected InflateBuffers initialValue() {
+            return new InflateBuffers();
+        }
+    };
+
+    private static final class InflateBuffers {
+        final Inflater inflater = new Inflater(true);
+        byte[] input = new byte[20 * 1024];
+    }
+
+    /**
+     * Location of an entry data in the mapping.
+     */
+    private static final class Entry {
+        final int method;
+        final int crc;
+        final int compressedSize;
+        final int size;
+        final int localHeaderOffset;
+
+        /** offset of the entry data, resolved from the local header on first use */
+        volatile int dataOffset = -1;
+
+        Entry(int method, int crc, int compressedSize, int size, int localHeaderOffset) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final File file;
+    private final MappedByteBuffer mapping;
+    private final Map<String, Entry> entries;
+    /** names of the file entries, in central directory order */
+    private final List<String> names;
+
+    private MappedArchivePathElement(File file, MappedByteBuffer mapping,
+            Map<String, Entry> entries, List<String> names) {
+        this.file = file;
+        this.mapping = mapping;
+        this.entries = entries;
+        this.names = names;
+    }
+
+    /**
+     * Maps {@code file} and indexes its central directory.
+     *
+     * @throws ZipException if the file is not a zip archive this class can read
+     */
+    static MappedArchivePathElement open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapping;
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new ZipException("\"" + file.getPath() + "\" is too big to be mapped");
+            }
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            // The mapping stays valid once the channel is closed.
+            raf.close();
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = findEndOfCentralDirectory(mapping);
+        if (end < 0) {
+            throw new ZipException("\"" + file.getPath() + "\" is not a zip archive");
+        }
+        int count = mapping.getShort(end + 10) & 0xffff;
+        long directoryOffset = mapping.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || directoryOffset == 0xffffffffL) {
+            throw new ZipException("\"" + file.getPath() + "\" is a zip64 archive");
+        }
+
+        Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+        List<String> names = new ArrayList<String>(count);
+        int offset = (int) directoryOffset;
+        byte[] nameBuffer = new byte[256];
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > mapping.limit()
+                    || mapping.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory entry " + i + " in \""
+                        + file.getPath() + "\"");
+            }
+            int method = mapping.getShort(offset + 10) & 0xffff;
+            int crc = mapping.getInt(offset + 16);
+            int compressedSize = mapping.getInt(offset + 20);
+            int size = mapping.getInt(offset + 24);
+            int nameLength = mapping.getShort(offset + 28) & 0xffff;
+            int extraLength = mapping.getShort(offset + 30) & 0xffff;
+            int commentLength = mapping.getShort(offset + 32) & 0xffff;
+            int localHeaderOffset = mapping.getInt(offset + 42);
+            if (compressedSize < 0 || size < 0 || localHeaderOffset < 0) {
+                throw new ZipException("\"" + file.getPath() + "\" is a zip64 archive");
+            }
+
+            if (nameBuffer.length < nameLength) {
+                nameBuffer = new byte[nameLength];
+            }
+            ByteBuffer nameSlice = mapping.duplicate();
+            nameSlice.position(offset + CENTRAL_HEADER_SIZE);
+            nameSlice.get(nameBuffer, 0, nameLength);
+            String name = new String(nameBuffer, 0, nameLength, UTF_8);
+
+            Entry entry = new Entry(method, crc, compressedSize, size, localHeaderOffset);
+            if (entries.put(name, entry) == null && !name.endsWith("/")) {
+                names.add(name);
+            }
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return new MappedArchivePathElement(file, mapping, entries,
+                Collections.unmodifiableList(names));
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer mapping) {
+        int last = mapping.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        int first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (int offset = last; offset >= first; offset--) {
+            if (mapping.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private Entry getEntry(String path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            throw new FileNotFoundException("File \"" + path + "\" not found");
+        } else if (path.endsWith("/")) {
+            throw new ArchivePathElement.DirectoryEntryException();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a read only view of the raw, possibly compressed, data of an entry.
+     */
+    private ByteBuffer getData(String path, Entry entry) throws ZipException {
+        int dataOffset = entry.dataOffset;
+        if (dataOffset < 0) {
+            int header = entry.localHeaderOffset;
+            if (header + LOCAL_HEADER_SIZE > mapping.limit()
+                    || mapping.getInt(header) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad local header for \"" + path + "\" in \""
+                        + file.getPath() + "\"");
+            }
+            dataOffset = header + LOCAL_HEADER_SIZE
+                    + (mapping.getShort(header + 26) & 0xffff)
+                    + (mapping.getShort(header + 28) & 0xffff);
+            entry.dataOffset = dataOffset;
+        }
+        ByteBuffer data = mapping.duplicate();
+        data.limit(dataOffset + entry.compressedSize);
+        data.position(dataOffset);
+        return data.slice();
+    }
+
+    /**
+     * Reads a whole entry into an array of its exact size. This is the only copy made: stored
+     * entries are copied straight from the mapping and deflated ones inflated into the result.
+     */
+    byte[] read(String path) throws IOException {
+        Entry entry = getEntry(path);
+        ByteBuffer data = getData(path, entry);
+        byte[] result = new byte[entry.size];
+        if (entry.method == METHOD_STORED) {
+            data.get(result);
+            return result;
+        } else if (entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for \""
+                    + path + "\"");
+        }
+
+        InflateBuffers buffers = INFLATE_BUFFERS.get();
+        if (buffers.input.length < entry.compressedSize) {
+            buffers.input = new byte[entry.compressedSize];
+        }
+        data.get(buffers.input, 0, entry.compressedSize);
+        Inflater inflater = buffers.inflater;
+        inflater.reset();
+        inflater.setInput(buffers.input, 0, entry.compressedSize);
+        try {
+            int position = 0;
+            while (position < result.length) {
+                int amt = inflater.inflate(result, position, result.length - position);
+                if (amt == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                position += amt;
+            }
+            if (position != result.length) {
+                throw new ZipException("Truncated entry \"" + path + "\" in \"" + file.getPath()
+                        + "\"");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt entry \"" + path + "\": " + e.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        Entry entry = getEntry(path);
+        if (entry.method == METHOD_STORED) {
+            return new ByteBufferInputStream(getData(path, entry));
+        }
+        return new ByteArrayInputStream(read(path));
+    }
+
+    /**
+     * Returns the CRC and size recorded in the central directory, like
+     * {@link ArchivePathElement#getFingerprint}.
+     */
+    @Override
+    public long getFingerprint(String path) throws IOException {
+        Entry entry = getEntry(path);
+        return ((long) entry.size << 32) ^ (entry.crc & 0xffffffffL);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release eagerly, the mapping is unmapped once it is garbage collected.
+    }
+
+    @Override
+    public Iterable<String> list() {
+        return names;
+    }
+
+    /**
+     * An {@code InputStream} over a buffer, used to expose stored entries without copying them.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int amt = Math.min(len, buffer.remaining());
+            buffer.get(b, off, amt);
+            return amt;
+        }
+
+        @Override
+        public long skip(long n) {
+            int amt = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + amt);
+            return amt;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.droid.multidex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sorted index of the classes of a {@link Path}, used to find the nested classes of a class
+ * without scanning the whole path.
+ */
+class NestedClassIndex {
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private static final char NESTED_SEPARATOR = '$';
+
+    /** binary names of every class in the path, sorted and without duplicates */
+    private final String[] classNames;
+
+    NestedClassIndex(Path path) {
+        List<String> names = new ArrayList<String>();
+        for (ClassPathElement element : path.getElements()) {
+            for (String entry : element.list()) {
+                if (entry.endsWith(CLASS_EXTENSION)) {
+                    names.add(entry.substring(0, entry.length() - CLASS_EXTENSION.length()));
+                } else {
+                    System.out.println(MainDexListBuilder.TAG + "iterator classFind not class "
+                            + entry);
+                }
+            }
+        }
+        String[] sorted = names.toArray(new String[names.size()]);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (size == 0 || !sorted[i].equals(sorted[size - 1])) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        classNames = size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    /**
+     * Returns the classes nested in {@code outerClassName} at any depth, that is all the classes
+     * whose binary name starts with {@code outerClassName + '$'}. Anonymous and local classes are
+     * included.
+     *
+     * @param outerClassName {@code non-null;} binary name of the outer class
+     * @return {@code non-null;} the nested classes binary names, in sorted order
+     */
+    List<String> getNestedClasses(String outerClassName) {
+        String prefix = outerClassName + NESTED_SEPARATOR;
+        int index = Arrays.binarySearch(classNames, prefix);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (index == classNames.length || !classNames[index].startsWith(prefix)) {
+            return Collections.emptyList();
+        }
+        int end = index + 1;
+        while (end < classNames.length && classNames[end].startsWith(prefix)) {
+            end++;
+        }
+        return Arrays.asList(classNames).subList(index, end);
+    }
+
+    int size() {
+        return classNames.length;
+    }
+}
@@ -22,18 +22,53 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 class Path {
 
+    /** Default maximum number of class summaries retained by {@link #getSummary}. */
+    static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    /** Cached in place of a summary for classes that are not in this path. */
+    private static final ClassSummary MISSING = new ClassSummary("", null, null, null, 0,
+            null, null, null);
+
     static ClassPathElement getClassPathElement(File file)
             throws ZipException, IOException {
+        return getClassPathElement(file, false);
+    }
+
+    /**
+     * @param mapArchives whether zip files are read through a {@link MappedArchivePathElement},
+     * archives it can not read are still opened as {@link ArchivePathElement}
+     */
+    static ClassPathElement getClassPathElement(File file, boolean mapArchives)
+            throws ZipException, IOException {
         if (file.isDirectory()) {
             return new FolderPathElement(file);
         } else if (file.isFile()) {
+            if (mapArchives) {
+                try {
+                    return MappedArchivePathElement.open(file);
+                } catch (ZipException e) {
+                    // fall back to ZipFile, which will report the error if it can not read it either
+                }
+            }
             return new ArchivePathElement(new ZipFile(file));
         } else if (file.exists()) {
             throw new IOException("\"" + file.getPath() +
@@ -43,22 +78,84 @@ class Path {
         }
     }
 
+    /**
+     * A cached summary, computed by the first thread asking for it while the other ones wait for
+     * the result.
+     */
+    private static final class CacheEntry extends FutureTask<ClassSummary> {
+        /** value of {@link #clock} when the entry was last used */
+        volatile long lastAccess;
+
+        CacheEntry(Callable<ClassSummary> callable) {
+            super(callable);
+        }
+    }
+
+    /** Read buffers, one pair per thread so that class files can be loaded concurrently. */
+    private static final ThreadLocal<ReadBuffers> READ_BUFFERS = new ThreadLocal<ReadBuffers>() {
+        @Override
+        protected ReadBuffers initialValue() {
+            return new ReadBuffers();
+        }
+    };
+
+    private static final class ReadBuffers {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(40 * 1024);
+        final byte[] readBuffer = new byte[20 * 1024];
+    }
+
     List<ClassPathElement> elements = new ArrayList<ClassPathElement>();
     private final String definition;
-    private final ByteArrayOutputStream baos = new ByteArrayOutputStream(40 * 1024);
-    private final byte[] readBuffer = new byte[20 * 1024];
+
+    /** summaries by class file path */
+    private final ConcurrentMap<String, CacheEntry> summaries =
+            new ConcurrentHashMap<String, CacheEntry>(1024);
+    private final int cacheSize;
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    /** largest number of summaries retained at once */
+    private final AtomicLong peakCacheSize = new AtomicLong();
+    /** class files read to be summarized, their total size, and the time spent on each step */
+    private final AtomicLong classesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    /** summaries taken from {@link #sharedIndex} instead of being parsed */
+    private final AtomicLong sharedHits = new AtomicLong();
+    private SharedSummaryIndex sharedIndex;
 
     Path(String definition) throws IOException {
+        this(definition, DEFAULT_CACHE_SIZE, false);
+    }
+
+    /**
+     * @param cacheSize maximum number of class summaries retained, the least recently used ones
+     * are evicted first
+     * @param mapArchives whether zip files are memory mapped, see
+     * {@link #getClassPathElement(File, boolean)}
+     */
+    Path(String definition, int cacheSize, boolean mapArchives) throws IOException {
         this.definition = definition;
+        this.cacheSize = cacheSize;
         for (String filePath : definition.split(Pattern.quote(File.pathSeparator))) {
             try {
-                addElement(getClassPathElement(new File(filePath)));
+                addElement(getClassPathElement(new File(filePath), mapArchives));
             } catch (IOException e) {
                 throw new IOException("Wrong classpath: " + e.getMessage(), e);
             }
         }
     }
 
+    /**
+     * Shares the summaries of this path with other paths, see {@link SharedSummaryIndex}. This must
+     * be called before any summary is requested.
+     */
+    void setSharedIndex(SharedSummaryIndex sharedIndex) {
+        this.sharedIndex = sharedIndex;
+    }
+
     private static byte[] readStream(InputStream in, ByteArrayOutputStream baos, byte[] readBuffer)
             throws IOException {
         try {
@@ -90,17 +187,28 @@ class Path {
         elements.add(element);
     }
 
-    synchronized com.droid.dx.cf.direct.DirectClassFile getClass(String path) throws FileNotFoundException {
-        com.droid.dx.cf.direct.DirectClassFile classFile = null;
+    /**
+     * Returns the content of a class file, from the first element of the path containing it.
+     *
+     * @throws FileNotFoundException if the class is not in this path
+     */
+    byte[] readClass(String path) throws FileNotFoundException {
+        ReadBuffers buffers = READ_BUFFERS.get();
         for (ClassPathElement element : elements) {
+            if (element instanceof MappedArchivePathElement) {
+                try {
+                    return ((MappedArchivePathElement) element).read(path);
+                } catch (IOException e) {
+                    // search next element
+                    continue;
+                }
+            }
             try {
                 InputStream in = element.open(path);
                 try {
-                    byte[] bytes = readStream(in, baos, readBuffer);
-                    baos.reset();
-                    classFile = new com.droid.dx.cf.direct.DirectClassFile(bytes, path, false);
-                    classFile.setAttributeFactory(com.droid.dx.cf.direct.StdAttributeFactory.THE_ONE);
-                    break;
+                    byte[] bytes = readStream(in, buffers.baos, buffers.readBuffer);
+                    buffers.baos.reset();
+                    return bytes;
                 } finally {
                     in.close();
                 }
@@ -108,9 +216,236 @@ class Path {
                 // search next element
             }
         }
-        if (classFile == null) {
+        throw new FileNotFoundException("File \"" + path + "\" not found");
+    }
+
+    /**
+     * Returns the summary of a class, parsing the class file only if it is not already cached.
+     *
+     * @param path a '/' separated class file path, including the class extension
+     * @throws FileNotFoundException if the class is not in this path
+     */
+    ClassSummary getSummary(String path) throws FileNotFoundException {
+        ClassSummary summary = findSummary(path);
+        if (summary == null) {
             throw new FileNotFoundException("File \"" + path + "\" not found");
         }
-        return classFile;
+        return summary;
+    }
+
+    /**
+     * Same as {@link #getSummary} but returns {@code null} for a class that is not in this path.
+     * This may be called concurrently, a class is parsed only once even when several threads ask
+     * for it at the same time.
+     */
+    ClassSummary findSummary(final String path) {
+        CacheEntry entry = summaries.get(path);
+        if (entry != null) {
+            cacheHits.incrementAndGet();
+        } else {
+            CacheEntry created = new CacheEntry(new Callable<ClassSummary>() {
+                @Override
+                public ClassSummary call() {
+                    try {
+                        return summarize(path);
+                    } catch (FileNotFoundException e) {
+                        return MISSING;
+                    }
+                }
+            });
+            entry = summaries.putIfAbsent(path, created);
+            if (entry == null) {
+                cacheMisses.incrementAndGet();
+                entry = created;
+                entry.run();
+                evictIfNeeded();
+            } else {
+                cacheHits.incrementAndGet();
+            }
+        }
+        entry.lastAccess = clock.incrementAndGet();
+
+        ClassSummary summary;
+        try {
+            summary = entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Do not keep a failure, parse errors are reported to every caller.
+            summaries.remove(path, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return summary == MISSING ? null : summary;
+    }
+
+    /**
+     * Reads and parses a class file, unless the shared index already has a summary of the same
+     * content.
+     */
+    private ClassSummary summarize(String path) throws FileNotFoundException {
+        long start = System.nanoTime();
+        byte[] bytes = readClass(path);
+        long read = System.nanoTime();
+        readNanos.addAndGet(read - start);
+        classesRead.incrementAndGet();
+        bytesRead.addAndGet(bytes.length);
+        String digest = null;
+        if (sharedIndex != null) {
+            digest = SharedSummaryIndex.digest(bytes);
+            ClassSummary shared = sharedIndex.get(path, digest);
+            if (shared != null) {
+                sharedHits.incrementAndGet();
+                return shared;
+            }
+        }
+
+        ClassSummary summary;
+        try {
+            summary = ClassSummaryReader.read(
+                    path.substring(0, path.length() - CLASS_EXTENSION.length()), bytes);
+        } finally {
+            parseNanos.addAndGet(System.nanoTime() - read);
+        }
+        if (sharedIndex != null) {
+            sharedIndex.put(path, digest, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * Drops the least recently used summaries once the cache outgrew its bound. Eviction goes a
+     * tenth below the bound so that it does not run again on every insertion, and is skipped if
+     * another thread is already evicting.
+     */
+    private void evictIfNeeded() {
+        int size = summaries.size();
+        long peak;
+        while (size > (peak = peakCacheSize.get()) && !peakCacheSize.compareAndSet(peak, size)) {
+            // another thread raised the peak, check again
+        }
+        if (size <= cacheSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int excess = summaries.size() - cacheSize + cacheSize / 10;
+            if (excess <= 0) {
+                return;
+            }
+            long[] stamps = new long[summaries.size()];
+            int count = 0;
+            for (CacheEntry entry : summaries.values()) {
+                if (count == stamps.length) {
+                    break;
+                }
+                stamps[count++] = entry.lastAccess;
+            }
+            Arrays.sort(stamps, 0, count);
+            long threshold = stamps[Math.min(excess, count) - 1];
+            for (Map.Entry<String, CacheEntry> entry : summaries.entrySet()) {
+                if (excess == 0) {
+                    break;
+                }
+                CacheEntry value = entry.getValue();
+                if (value.isDone() && value.lastAccess <= threshold
+                        && summaries.remove(entry.getKey(), value)) {
+                    excess--;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Puts summaries computed by a previous run in the cache, so that the corresponding classes are
+     * not parsed again. The caller is responsible for checking that the classes did not change.
+     *
+     * @param preloaded {@code non-null;} summaries by class file path
+     */
+    void preload(Map<String, ClassSummary> preloaded) {
+        for (Map.Entry<String, ClassSummary> entry : preloaded.entrySet()) {
+            final ClassSummary summary = entry.getValue();
+            CacheEntry cacheEntry = new CacheEntry(new Callable<ClassSummary>() {
+                @Override
+                public ClassSummary call() {
+                    return summary;
+                }
+            });
+            cacheEntry.run();
+            summaries.putIfAbsent(entry.getKey(), cacheEntry);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Returns the summaries currently cached, by class file path. Classes that are still being
+     * parsed and classes that are not in the path are omitted.
+     */
+    Map<String, ClassSummary> getCachedSummaries() {
+        Map<String, ClassSummary> result = new HashMap<String, ClassSummary>(summaries.size());
+        for (Map.Entry<String, CacheEntry> entry : summaries.entrySet()) {
+            CacheEntry value = entry.getValue();
+            if (value.isDone()) {
+                try {
+                    ClassSummary summary = value.get();
+                    if (summary != MISSING) {
+                        result.put(entry.getKey(), summary);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // parse failure, nothing to keep
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the fingerprint of every class file of this path, by class file path. When a class is
+     * present in several elements, the first one wins as in {@link #readClass}.
+     */
+    Map<String, Long> getFingerprints() throws IOException {
+        Map<String, Long> fingerprints = new HashMap<String, Long>();
+        for (ClassPathElement element : elements) {
+            for (String name : element.list()) {
+                if (name.endsWith(CLASS_EXTENSION) && !fingerprints.containsKey(name)) {
+                    fingerprints.put(name, Long.valueOf(element.getFingerprint(name)));
+                }
+            }
+        }
+        return fingerprints;
+    }
+
+    long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Adds the cache and class reading counters of this path to {@code report}. Read and parse
+     * times are summed over all the threads.
+     */
+    void addCounters(BuildReport report) {
+        report.put("classesRead", classesRead.get());
+        report.put("bytesRead", bytesRead.get());
+        report.putMillis("readMillis", readNanos.get());
+        report.putMillis("parseMillis", parseNanos.get());
+        report.put("cacheHits", cacheHits.get());
+        report.put("cacheMisses", cacheMisses.get());
+        report.putRatio("cacheHitRate", cacheHits.get(), cacheHits.get() + cacheMisses.get());
+        report.put("peakRetainedClasses", peakCacheSize.get());
+        if (sharedIndex != null) {
+            report.put("sharedIndexHits", sharedHits.get());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+package com.droid.multidex;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Class summaries shared by the {@link Path}s of several main dex list computations, keyed by
+ * class file path and SHA-256 digest of the content. A class that is identical in several class
+ * paths is parsed once, whichever path reads it first.
+ * <p>
+ * Unlike the cache of a {@link Path}, this index is not bounded: it lives as long as the batch of
+ * computations sharing it.
+ */
+final class SharedSummaryIndex {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ConcurrentMap<String, ClassSummary> summaries =
+            new ConcurrentHashMap<String, ClassSummary>(4096);
+
+    /**
+     * @param path class file path
+     * @param digest digest of the class file content, see {@link #digest(byte[])}
+     * @return {@code null-ok;} the summary of a class file with that path and content
+     */
+    ClassSummary get(String path, String digest) {
+        return summaries.get(getKey(path, digest));
+    }
+
+    void put(String path, String digest, ClassSummary summary) {
+        summaries.putIfAbsent(getKey(path, digest), summary);
+    }
+
+    int size() {
+        return summaries.size();
+    }
+
+    /**
+     * @return the hexadecimal SHA-256 digest of a class file content
+     */
+    static String digest(byte[] bytes) {
+        byte[] digest = SHA_256.get().digest(bytes);
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static String getKey(String path, String digest) {
+        return path + '#' + digest;
+    }
+}
@@ -0,0 +1,176 @@
+package com.droid.dx.command.dexer;
+
+import com.droid.dx.cf.direct.ClassPathOpener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Writes jars with {@link OutputJar} and reads them back.
+ */
+public final class OutputJarTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("OutputJarTest", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void fileEntriesRoundTrip() throws IOException {
+        // Random bytes barely compress, so the deflated data is about as
+        // large as the input, and several buffers of each.
+        byte[] random = new byte[300 * 1024 + 17];
+        new Random(42).nextBytes(random);
+        byte[] repeated = new byte[200 * 1024];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) (i % 7);
+        }
+
+        File jar = new File(dir, "out.jar");
+        OutputJar out = new OutputJar(jar, newManifest());
+        out.add("classes.dex", writeFile("random", random));
+        out.add("classes2.dex", writeFile("repeated", repeated));
+        out.add("empty.dex", writeFile("empty", new byte[0]));
+        out.add("bytes.txt", repeated);
+        assertFalse(out.add("classes.dex", writeFile("again", repeated)));
+        out.finish();
+
+        ZipFile zip = new ZipFile(jar);
+        try {
+            assertArrayEquals(random, read(zip, "classes.dex"));
+            assertArrayEquals(repeated, read(zip, "classes2.dex"));
+            assertArrayEquals(new byte[0], read(zip, "empty.dex"));
+            assertArrayEquals(repeated, read(zip, "bytes.txt"));
+            assertEquals(5, zip.size());
+        } finally {
+            zip.close();
+        }
+
+        JarFile jarFile = new JarFile(jar);
+        try {
+            assertEquals("1.0", jarFile.getManifest().getMainAttributes()
+                    .getValue(Attributes.Name.MANIFEST_VERSION));
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public void rawEntriesKeepFirstOfName() throws IOException {
+        byte[] repeated = new byte[100 * 1024];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) (i % 5);
+        }
+        File input = new File(dir, "in.jar");
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            zipOut.putNextEntry(new ZipEntry("first.txt"));
+            zipOut.write(new byte[] { 2 });
+            zipOut.putNextEntry(new ZipEntry("raw.txt"));
+            zipOut.write(repeated);
+            zipOut.putNextEntry(new ZipEntry("skipped.txt"));
+            zipOut.write(new byte[] { 3 });
+        } finally {
+            zipOut.close();
+        }
+
+        OutputJar.RawEntries raw = OutputJar.readRaw(input,
+                new ClassPathOpener.FileNameFilter() {
+                    @Override
+                    public boolean accept(String path) {
+                        return !path.equals("skipped.txt");
+                    }
+                });
+        assertEquals(new HashSet<String>(Arrays.asList("first.txt", "raw.txt")),
+                raw.getNames());
+
+        File jar = new File(dir, "out.jar");
+        OutputJar out = new OutputJar(jar, newManifest());
+        out.add("first.txt", new byte[] { 1 });
+        assertEquals(Arrays.asList("raw.txt"), out.addRaw(raw));
+        out.finish();
+
+        ZipFile zip = new ZipFile(jar);
+        try {
+            assertArrayEquals(new byte[] { 1 }, read(zip, "first.txt"));
+            assertArrayEquals(repeated, read(zip, "raw.txt"));
+            assertEquals(3, zip.size());
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static Manifest newManifest() {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        return manifest;
+    }
+
+    private File writeFile(String name, byte[] contents) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Reads an entry, which the zip file checks against its CRC and size.
+     */
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,124 @@
+package com.droid.dx.dex.cf;
+
+import com.droid.dx.cf.direct.DirectClassFile;
+import com.droid.dx.cf.direct.StdAttributeFactory;
+import com.droid.dx.dex.DexOptions;
+import com.droid.dx.dex.file.DexFile;
+import com.droid.dx.dex.file.Item;
+import com.droid.dx.dex.file.MemberIdItem;
+import com.droid.dx.dex.file.TypeIdItem;
+import com.droid.dx.rop.cst.CstBaseMethodRef;
+import com.droid.dx.rop.cst.CstInterfaceMethodRef;
+import com.droid.dx.rop.cst.CstMemberRef;
+import com.droid.dx.rop.type.Type;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the ids {@link ClassIds} reserves for a class cover the ids
+ * its translation writes, over the classes of the JUnit jar.
+ */
+public final class ClassIdsTest {
+
+    @Test
+    public void reservedIdsCoverWrittenIds() throws IOException {
+        File jar = new File(Test.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath());
+        int classCount = 0;
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    checkClass(entry.getName(), read(zip, entry), true);
+                    checkClass(entry.getName(), read(zip, entry), false);
+                    classCount++;
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        assertTrue(jar + " has too few classes", classCount > 100);
+    }
+
+    private static void checkClass(String name, byte[] bytes,
+            boolean optimize) throws IOException {
+        DirectClassFile cf = new DirectClassFile(bytes, name, false);
+        cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
+        cf.getMagic();
+
+        CfOptions cfOptions = new CfOptions();
+        cfOptions.optimize = optimize;
+        cfOptions.localInfo = true;
+        cfOptions.positionInfo = com.droid.dx.dex.code.PositionList.LINES;
+        cfOptions.warn = com.droid.dx.command.DxConsole.noop;
+        DexOptions dexOptions = new DexOptions();
+        DexFile dexFile = new DexFile(dexOptions);
+        ClassIds ids = ClassIds.of(cf, cfOptions.localInfo);
+        dexFile.add(CfTranslator.translate(cf, bytes, cfOptions, dexOptions,
+                dexFile));
+        // Writing the dex file interns what the translation left to it.
+        dexFile.toDex(null, false);
+
+        Set<CstBaseMethodRef> methods = new HashSet<CstBaseMethodRef>(
+                Arrays.asList(ids.getMethods()));
+        for (Item item : dexFile.getMethodIds().items()) {
+            CstMemberRef ref = ((MemberIdItem) item).getRef();
+            if (ref instanceof CstInterfaceMethodRef) {
+                ref = ((CstInterfaceMethodRef) ref).toMethodRef();
+            }
+            if (!methods.contains(ref)) {
+                fail(name + " (optimize " + optimize + ") writes method "
+                        + ref + " it did not reserve");
+            }
+        }
+        Set<CstMemberRef> fields = new HashSet<CstMemberRef>(
+                Arrays.asList(ids.getFields()));
+        for (Item item : dexFile.getFieldIds().items()) {
+            CstMemberRef ref = ((MemberIdItem) item).getRef();
+            if (!fields.contains(ref)) {
+                fail(name + " (optimize " + optimize + ") writes field "
+                        + ref + " it did not reserve");
+            }
+        }
+        Set<Type> types = new HashSet<Type>(Arrays.asList(ids.getTypes()));
+        for (Item item : dexFile.getTypeIds().items()) {
+            Type type = ((TypeIdItem) item).getDefiningClass().getClassType();
+            if (!types.contains(type)) {
+                fail(name + " (optimize " + optimize + ") writes type "
+                        + type + " it did not reserve");
+            }
+        }
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
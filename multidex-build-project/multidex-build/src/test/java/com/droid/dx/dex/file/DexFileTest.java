@@ -0,0 +1,140 @@
+package com.droid.dx.dex.file;
+
+import com.droid.dx.cf.direct.DirectClassFile;
+import com.droid.dx.cf.direct.StdAttributeFactory;
+import com.droid.dx.dex.DexOptions;
+import com.droid.dx.dex.cf.CfOptions;
+import com.droid.dx.dex.cf.CfTranslator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DexFile#writeTo(FileChannel)} streams the same bytes
+ * as {@link DexFile#toDex}, over the classes of the JUnit jar.
+ */
+public final class DexFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("DexFileTest", ".dex");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writeToChannelMatchesToDex() throws IOException {
+        checkWriteTo(1);
+    }
+
+    @Test
+    public void writeToChannelMatchesConcurrentToDex() throws IOException {
+        checkWriteTo(4);
+    }
+
+    /**
+     * @param numWriteThreads threads writing the sections of the expected
+     * dex file, {@code writeTo} streams them in order
+     */
+    private void checkWriteTo(int numWriteThreads) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<byte[]> classes = new ArrayList<byte[]>();
+        readClasses(names, classes);
+        assertTrue(classes.size() > 100);
+
+        // Sections are prepared once, so each output has its own dex file.
+        byte[] expected = newDexFile(names, classes, numWriteThreads)
+                .toDex(null, false);
+
+        DexFile dexFile = newDexFile(names, classes, 1);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            dexFile.writeTo(channel);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+
+        assertArrayEquals(expected, readFile(file));
+    }
+
+    private static DexFile newDexFile(List<String> names, List<byte[]> classes,
+            int numWriteThreads) {
+        CfOptions cfOptions = new CfOptions();
+        cfOptions.optimize = true;
+        cfOptions.localInfo = true;
+        cfOptions.warn = com.droid.dx.command.DxConsole.noop;
+        DexOptions dexOptions = new DexOptions();
+        dexOptions.numWriteThreads = numWriteThreads;
+        DexFile dexFile = new DexFile(dexOptions);
+        for (int i = 0; i < classes.size(); i++) {
+            byte[] bytes = classes.get(i);
+            DirectClassFile cf = new DirectClassFile(bytes, names.get(i), false);
+            cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
+            cf.getMagic();
+            dexFile.add(CfTranslator.translate(cf, bytes, cfOptions, dexOptions,
+                    dexFile));
+        }
+        return dexFile;
+    }
+
+    private static void readClasses(List<String> names, List<byte[]> classes)
+            throws IOException {
+        File jar = new File(Test.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath());
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    names.add(entry.getName());
+                    classes.add(read(zip.getInputStream(entry)));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,240 @@
+package com.droid.multidex;
+
+import com.droid.dx.cf.attrib.AttRuntimeVisibleAnnotations;
+import com.droid.dx.cf.direct.DirectClassFile;
+import com.droid.dx.cf.direct.StdAttributeFactory;
+import com.droid.dx.cf.iface.Attribute;
+import com.droid.dx.cf.iface.FieldList;
+import com.droid.dx.cf.iface.HasAttribute;
+import com.droid.dx.cf.iface.MethodList;
+import com.droid.dx.cf.iface.ParseException;
+import com.droid.dx.rop.cst.Constant;
+import com.droid.dx.rop.cst.CstBaseMethodRef;
+import com.droid.dx.rop.cst.CstFieldRef;
+import com.droid.dx.rop.cst.CstType;
+import com.droid.dx.rop.type.Prototype;
+import com.droid.dx.rop.type.StdTypeList;
+import com.droid.dx.rop.type.TypeList;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link ClassSummaryReader} against summaries taken from a {@link DirectClassFile}, as
+ * main dex tracing used to, over the classes of the JUnit jar.
+ */
+public final class ClassSummaryReaderTest {
+
+    @Test
+    public void readerMatchesDirectClassFile() throws IOException {
+        File jar = new File(Test.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath());
+        int classCount = 0;
+        int annotatedClasses = 0;
+        int annotatedMembers = 0;
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (!path.endsWith(".class")) {
+                    continue;
+                }
+                String name = path.substring(0, path.length() - ".class".length());
+                byte[] bytes = read(zip.getInputStream(entry));
+                ClassSummary expected = summarize(name, bytes);
+                ClassSummary actual = ClassSummaryReader.read(name, bytes);
+
+                assertEquals(name, expected.getSuperName(), actual.getSuperName());
+                assertArrayEquals(name, expected.getInterfaces(), actual.getInterfaces());
+                assertEquals(name, asSet(expected.getReferences()),
+                        asSet(actual.getReferences()));
+                assertEquals(name, expected.getAnnotationFlags(), actual.getAnnotationFlags());
+                classCount++;
+                if ((actual.getAnnotationFlags() & ClassSummary.ANNOTATED_CLASS) != 0) {
+                    annotatedClasses++;
+                }
+                if ((actual.getAnnotationFlags() & ClassSummary.ANNOTATED_MEMBER) != 0) {
+                    annotatedMembers++;
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        assertTrue(jar + " has too few classes", classCount > 100);
+        assertTrue(annotatedClasses > 0);
+        assertTrue(annotatedMembers > 0);
+    }
+
+    /**
+     * The dx constant pool parser rejects method handles, method types and invokedynamic, so a
+     * class with lambdas is checked against what it is known to reference instead.
+     */
+    @Test
+    public void readerSkipsLambdaConstants() throws IOException {
+        String name = WithLambdas.class.getName().replace('.', '/');
+        byte[] bytes = read(WithLambdas.class.getResourceAsStream("/" + name + ".class"));
+        ClassSummary summary = ClassSummaryReader.read(name, bytes);
+
+        assertEquals("java/lang/Object", summary.getSuperName());
+        Set<String> references = asSet(summary.getReferences());
+        // from the constant pool, around and within the lambda constants
+        assertTrue(references.contains("java/lang/invoke/LambdaMetafactory"));
+        assertTrue(references.contains("java/lang/Runnable"));
+        assertTrue(references.contains("java/lang/StringBuilder"));
+        assertTrue(references.contains("java/util/Comparator"));
+        // only from a field descriptor, read after the constant pool
+        assertTrue(references.contains("java/util/zip/Adler32"));
+        assertEquals(ClassSummary.ANNOTATED_MEMBER, summary.getAnnotationFlags());
+    }
+
+    /**
+     * Dynamic constants, modules and packages are rejected, as by the dx constant pool parser.
+     */
+    @Test
+    public void readerRejectsNewerConstants() throws IOException {
+        for (int tag : new int[] {17, 19, 20}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(55);
+            out.writeShort(2);
+            out.writeByte(tag);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.close();
+            try {
+                ClassSummaryReader.read("A", bytes.toByteArray());
+                fail("tag " + tag + " accepted");
+            } catch (ParseException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("unknown tag byte"));
+            }
+        }
+    }
+
+    static final class WithLambdas {
+        Adler32 checksum;
+
+        Runnable runnable() {
+            return () -> System.out.println(new StringBuilder().append(checksum));
+        }
+
+        @Deprecated
+        Comparator<String> comparator() {
+            return String::compareTo;
+        }
+    }
+
+    /**
+     * Summarizes a class from its {@link DirectClassFile}, the way {@code ClassSummary} did
+     * before {@link ClassSummaryReader}.
+     */
+    private static ClassSummary summarize(String name, byte[] bytes) {
+        DirectClassFile classFile = new DirectClassFile(bytes, name + ".class", false);
+        classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
+        classFile.getMagic();
+
+        CstType superClass = classFile.getSuperclass();
+        String superName = superClass == null ? null : superClass.getClassType().getClassName();
+
+        TypeList interfaceList = classFile.getInterfaces();
+        String[] interfaces = new String[interfaceList.size()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = interfaceList.getType(i).getClassName();
+        }
+
+        Set<String> references = new HashSet<String>();
+        for (Constant constant : classFile.getConstantPool().getEntries()) {
+            if (constant instanceof CstType) {
+                checkDescriptor(((CstType) constant).getClassType().getDescriptor(), references);
+            } else if (constant instanceof CstFieldRef) {
+                checkDescriptor(((CstFieldRef) constant).getType().getDescriptor(), references);
+            } else if (constant instanceof CstBaseMethodRef) {
+                checkPrototype(((CstBaseMethodRef) constant).getPrototype(), references);
+            }
+        }
+
+        int annotationFlags = 0;
+        if (hasRuntimeVisibleAnnotation(classFile)) {
+            annotationFlags |= ClassSummary.ANNOTATED_CLASS;
+        }
+        FieldList fields = classFile.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            checkDescriptor(fields.get(i).getDescriptor().getString(), references);
+            if (hasRuntimeVisibleAnnotation(fields.get(i))) {
+                annotationFlags |= ClassSummary.ANNOTATED_MEMBER;
+            }
+        }
+        MethodList methods = classFile.getMethods();
+        for (int i = 0; i < methods.size(); i++) {
+            checkPrototype(Prototype.intern(methods.get(i).getDescriptor().getString()),
+                    references);
+            if (hasRuntimeVisibleAnnotation(methods.get(i))) {
+                annotationFlags |= ClassSummary.ANNOTATED_MEMBER;
+            }
+        }
+
+        return new ClassSummary(name, superName, interfaces,
+                references.toArray(new String[references.size()]), annotationFlags,
+                new int[0], new int[0], new int[0]);
+    }
+
+    private static void checkPrototype(Prototype proto, Set<String> references) {
+        checkDescriptor(proto.getReturnType().getDescriptor(), references);
+        StdTypeList args = proto.getParameterTypes();
+        for (int i = 0; i < args.size(); i++) {
+            checkDescriptor(args.get(i).getDescriptor(), references);
+        }
+    }
+
+    private static void checkDescriptor(String descriptor, Set<String> references) {
+        if (descriptor.endsWith(";")) {
+            int lastBrace = descriptor.lastIndexOf('[');
+            references.add(descriptor.substring(lastBrace + 2, descriptor.length() - 1));
+        }
+    }
+
+    private static boolean hasRuntimeVisibleAnnotation(HasAttribute element) {
+        Attribute att = element.getAttributes().findFirst(
+                AttRuntimeVisibleAnnotations.ATTRIBUTE_NAME);
+        return att != null && ((AttRuntimeVisibleAnnotations) att).getAnnotations().size() > 0;
+    }
+
+    private static Set<String> asSet(String[] names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
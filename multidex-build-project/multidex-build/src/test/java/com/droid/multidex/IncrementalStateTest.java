@@ -0,0 +1,137 @@
+package com.droid.multidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link IncrementalState} reuses the summaries of the unchanged classes of a class
+ * folder, with classes of the JUnit jar.
+ */
+public final class IncrementalStateTest {
+
+    private static final String PACKAGE = "org/junit/runner/";
+
+    private File folder;
+    private File stateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("IncrementalStateTest", "");
+        folder.delete();
+        folder.mkdir();
+        stateFile = new File(folder.getPath() + ".state");
+    }
+
+    @After
+    public void tearDown() {
+        delete(folder);
+        stateFile.delete();
+    }
+
+    @Test
+    public void unchangedFolderClassesAreReused() throws IOException {
+        Set<String> classes = extractClasses();
+        assertTrue(classes.size() > 5);
+
+        Path path = new Path(folder.getPath());
+        Map<String, Long> fingerprints = path.getFingerprints();
+        assertEquals(classes, fingerprints.keySet());
+        for (String name : classes) {
+            path.getSummary(name);
+        }
+        new IncrementalState("key", fingerprints, path.getCachedSummaries(),
+                Collections.<String>emptySet()).write(stateFile);
+
+        String changed = classes.iterator().next();
+        OutputStream out = new FileOutputStream(new File(folder, changed), true);
+        try {
+            out.write(0);
+        } finally {
+            out.close();
+        }
+
+        Map<String, Long> currentFingerprints = new Path(folder.getPath()).getFingerprints();
+        IncrementalState previous = IncrementalState.read(stateFile);
+        assertFalse(previous.isUpToDate("key", currentFingerprints));
+        Set<String> unchanged = new HashSet<String>(classes);
+        unchanged.remove(changed);
+        assertEquals(unchanged, previous.getUnchangedSummaries(currentFingerprints).keySet());
+    }
+
+    /**
+     * Copies the classes of one package of the JUnit jar to the class folder.
+     *
+     * @return the class file paths of the copied classes
+     */
+    private Set<String> extractClasses() throws IOException {
+        File jar = new File(Test.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath());
+        Set<String> classes = new HashSet<String>();
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.startsWith(PACKAGE) && name.indexOf('/', PACKAGE.length()) < 0
+                        && name.endsWith(".class")) {
+                    File file = new File(folder, name);
+                    file.getParentFile().mkdirs();
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(read(zip.getInputStream(entry)));
+                    } finally {
+                        out.close();
+                    }
+                    classes.add(name);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return classes;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}